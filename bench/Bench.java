@@ -0,0 +1,176 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A small benchmark harness in the way of JMH: warm up, then time a number of fixed length
+ * iterations and report the mean time per operation with its spread over the iterations.
+ * (JMH itself needs the benchmarks in a named package, which can't see this default package code.)
+ *
+ * Every operation returns a value that is folded into a sink printed at the end, so the JIT
+ * can't drop the work as dead code. Operations are called in batches sized during warmup to
+ * take about BATCH_NANOS each, so reading the clock doesn't show up in nanosecond benchmarks.
+ *
+ * With -threads n the benchmarks registered as concurrent are run by n threads at once and ns/op
+ * is the wall time over all of their operations, the inverse of the throughput, so it falls as
+ * threads are added until they contend on something (a lock, the cores). The others always run on one.
+ *
+ * usage: Bench [-scale n] [-source file] [-warmup n] [-iterations n] [-time ms] [-threads n] [-k n] [-exhaustive] [name ...]
+ * run from the project directory; names select benchmarks by prefix, e.g. "indexing." or "search.multiTerm",
+ * all of them when none are given. -scale n > 1 runs over a SyntheticCorpus n times the size of -source.
+ */
+public class Bench {
+
+    private static final long BATCH_NANOS = 100000L;
+
+    /** one benchmarked operation, the returned value only feeds the sink **/
+    public interface Operation {
+        long run() throws Exception;
+    }
+
+    private final ArrayList<String> names = new ArrayList<String>();
+    private final ArrayList<Operation> operations = new ArrayList<Operation>();
+    private final ArrayList<Boolean> concurrent = new ArrayList<Boolean>();
+    private int warmup = 5;
+    private int iterations = 5;
+    private long time = 1000L; //ms per iteration
+    private int threads = 1;
+    private ExecutorService pool;
+    private long sink;
+
+    public void add(String name, Operation operation) {
+        add(name, operation, false);
+    }
+
+    /**
+     * @param concurrent operation is thread safe and is run on -threads threads
+     */
+    public void add(String name, Operation operation, boolean concurrent) {
+        this.names.add(name);
+        this.operations.add(operation);
+        this.concurrent.add(concurrent);
+    }
+
+    /**
+     * run every benchmark whose name starts with one of the prefixes (all if there are none)
+     */
+    public void run(ArrayList<String> prefixes, PrintStream out) throws Exception {
+        out.println(String.format(Locale.ROOT, "%-28s %12s %12s %10s %12s %8s", "benchmark", "ns/op", "error", "min", "ops", "threads"));
+        this.pool = Executors.newFixedThreadPool(this.threads);
+        try {
+            for(int b = 0; b < this.names.size(); b++) {
+                String name = this.names.get(b);
+                boolean selected = prefixes.isEmpty();
+                for(String p : prefixes) selected |= name.startsWith(p);
+                if(!selected) continue;
+                out.println(measure(name, this.operations.get(b), this.concurrent.get(b) ? this.threads : 1));
+            }
+        } finally {
+            this.pool.shutdown();
+        }
+        out.println("sink " + this.sink);
+    }
+
+    private String measure(String name, Operation operation, int threads) throws Exception {
+        long batch = 1;
+        for(int i = 0; i < this.warmup; i++) {
+            long[] timed = iteration(operation, batch, threads);
+            long batchNanos = timed[1] * batch / Math.max(1, timed[0]);
+            if(batchNanos < BATCH_NANOS) batch = Math.max(1, batch * BATCH_NANOS / Math.max(1, batchNanos));
+        }
+
+        double[] nanosPerOp = new double[this.iterations];
+        long ops = 0;
+        for(int i = 0; i < this.iterations; i++) {
+            long[] timed = iteration(operation, batch, threads);
+            nanosPerOp[i] = (double) timed[1] / timed[0];
+            ops += timed[0];
+        }
+
+        double mean = 0.0;
+        double min = Double.MAX_VALUE;
+        for(double t : nanosPerOp) {
+            mean += t / nanosPerOp.length;
+            min = Math.min(min, t);
+        }
+        double variance = 0.0;
+        for(double t : nanosPerOp) variance += (t - mean) * (t - mean) / Math.max(1, nanosPerOp.length - 1);
+        /** about a 99% interval of the mean, like JMH's error column for a handful of iterations **/
+        double error = 2.58 * Math.sqrt(variance / nanosPerOp.length);
+        return String.format(Locale.ROOT, "%-28s %12.1f %12.1f %10.1f %12d %8d", name, mean, error, min, ops, threads);
+    }
+
+    /** @return {operations, nanoseconds} of one iteration, the operations of every thread **/
+    private long[] iteration(final Operation operation, final long batch, int threads) throws Exception {
+        if(threads == 1) return loop(operation, batch, System.nanoTime());
+        final long start = System.nanoTime();
+        ArrayList<Future<long[]>> runs = new ArrayList<Future<long[]>>();
+        for(int t = 0; t < threads; t++) {
+            runs.add(this.pool.submit(new Callable<long[]>() {
+                public long[] call() throws Exception { return loop(operation, batch, start); }
+            }));
+        }
+        long ops = 0;
+        long elapsed = 0;
+        for(Future<long[]> run : runs) {
+            long[] timed = run.get();
+            ops += timed[0];
+            elapsed = Math.max(elapsed, timed[1]);
+        }
+        return new long[]{ops, elapsed};
+    }
+
+    /** run operation in batches until the iteration time since start is up, @return {operations, nanoseconds} **/
+    private long[] loop(Operation operation, long batch, long start) throws Exception {
+        long deadline = this.time * 1000000L;
+        long ops = 0;
+        long sink = 0;
+        long elapsed;
+        do {
+            for(long i = 0; i < batch; i++) sink += operation.run();
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+        } while(elapsed < deadline);
+        synchronized(this) {
+            this.sink += sink;
+        }
+        return new long[]{ops, elapsed};
+    }
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench();
+        int scale = 1;
+        String source = "input/cranfield.txt";
+        int k = VectorSpaceRetrievalSystem.DEFAULT_K;
+        boolean pruning = true;
+        ArrayList<String> prefixes = new ArrayList<String>();
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-scale")) scale = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-source")) source = args[++i];
+            else if(args[i].equals("-warmup")) bench.warmup = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-iterations")) bench.iterations = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-time")) bench.time = Long.parseLong(args[++i]);
+            else if(args[i].equals("-threads")) bench.threads = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-k")) k = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-exhaustive")) pruning = false;
+            else prefixes.add(args[i]);
+        }
+
+        Corpus corpus = Corpus.load(source, scale);
+        System.out.println(String.format(Locale.ROOT, "corpus %s scale %d: %d documents, %d bytes",
+                source, scale, corpus.documents.length, corpus.file.length()));
+        new IndexingBenchmark(corpus).register(bench);
+        SearchBenchmark search = new SearchBenchmark(corpus, k, pruning);
+        try {
+            search.register(bench);
+            bench.run(prefixes, System.out);
+        } finally {
+            search.close();
+            corpus.close();
+        }
+    }
+}
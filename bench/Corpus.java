@@ -0,0 +1,48 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * The collection the benchmarks run over. Scale 1 is the source collection itself
+ * (input/cranfield.txt by default), scale n a SyntheticCorpus of n times as many documents
+ * written to a temporary file.
+ */
+public class Corpus {
+
+    public final File file;
+    public final byte[][] documents; //each <DOC> ... </DOC> record, as the mapper gets it
+    private final boolean temporary;
+
+    private Corpus(File file, boolean temporary) throws IOException {
+        this.file = file;
+        this.temporary = temporary;
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ArrayList<byte[]> records = new ArrayList<byte[]>();
+        int start;
+        int from = 0;
+        while((start = SGMLDocumentInputFormat.indexOf(bytes, from, bytes.length, SGMLDocumentInputFormat.DOC_OPEN)) >= 0) {
+            int close = SGMLDocumentInputFormat.indexOf(bytes, start, bytes.length, SGMLDocumentInputFormat.DOC_CLOSE);
+            int end = close < 0 ? bytes.length : close + SGMLDocumentInputFormat.DOC_CLOSE.length;
+            byte[] record = new byte[end - start];
+            System.arraycopy(bytes, start, record, 0, record.length);
+            records.add(record);
+            from = end;
+        }
+        this.documents = records.toArray(new byte[records.size()][]);
+    }
+
+    public static Corpus load(String source, int scale) throws IOException {
+        if(scale <= 1) return new Corpus(new File(source), false);
+        SyntheticCorpus synthetic = new SyntheticCorpus(source);
+        File file = File.createTempFile("corpus", ".sgml");
+        synthetic.write(file.getPath(), scale * synthetic.getDocumentCount(), 1L);
+        return new Corpus(file, true);
+    }
+
+    /** delete the generated collection, if there is one **/
+    public void close() {
+        if(this.temporary) this.file.delete();
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Per token and per document costs of the first indexing job, the work SGMLTokenizerMapper
+ * does for every record. The benchmarks walk the corpus round robin with their own
+ * tokenizer, stemmer, StemCache and Posting, the way a map task has its own.
+ */
+public class IndexingBenchmark {
+
+    private static final int MAX_WORDS = 1 << 20;
+
+    private final Corpus corpus;
+    private final StopWordSet stopWords;
+    private final SGMLTokenizer tokenizer = new SGMLTokenizer();
+    private final Stemmer stemmer = new Stemmer();
+    private final StemCache stems = new StemCache(InputPreprocessor.DEFAULT_STEM_CACHE_SIZE);
+    private final Posting P = new Posting();
+    private final long[] counts = new long[InputPreprocessor.IndexCounters.values().length];
+
+    /** the words the stemmer gets (longer than 2 characters, not stop words), back to back **/
+    private final char[] words;
+    private final int[] wordStarts;
+    private int word;
+
+    /** each document's stemmed terms and field terms, for posting without tokenizing **/
+    private final String[][] documentTerms;
+    private final Integer[] docids;
+    private int document;
+
+    public IndexingBenchmark(Corpus corpus) throws IOException {
+        this.corpus = corpus;
+        this.stopWords = StopWordSet.load(VectorSpaceRetrievalSystem.DEFAULT_STOPWORDS);
+
+        StemCache stems = new StemCache(InputPreprocessor.DEFAULT_STEM_CACHE_SIZE); //leaves this.stems cold
+        StringBuilder chars = new StringBuilder();
+        ArrayList<Integer> starts = new ArrayList<Integer>();
+        this.documentTerms = new String[corpus.documents.length][];
+        this.docids = new Integer[corpus.documents.length];
+        for(int d = 0; d < corpus.documents.length; d++) {
+            this.tokenizer.reset(corpus.documents[d], corpus.documents[d].length);
+            this.docids[d] = this.tokenizer.readDocNo();
+            ArrayList<String> terms = new ArrayList<String>();
+            while(this.tokenizer.nextTerm()) {
+                char[] term = this.tokenizer.termBuffer();
+                int length = this.tokenizer.termLength();
+                if(length <= 2 || this.stopWords.contains(term, 0, length)) continue;
+                if(starts.size() < MAX_WORDS) {
+                    starts.add(chars.length());
+                    chars.append(term, 0, length);
+                }
+                terms.add(stems.stem(term, 0, length));
+                if(this.tokenizer.field() != Fields.NONE) terms.add(stems.stem(term, 0, length, this.tokenizer.field()));
+            }
+            this.documentTerms[d] = terms.toArray(new String[terms.size()]);
+        }
+        starts.add(chars.length());
+        this.words = chars.toString().toCharArray();
+        this.wordStarts = new int[starts.size()];
+        for(int i = 0; i < this.wordStarts.length; i++) this.wordStarts[i] = starts.get(i);
+    }
+
+    private int nextWord() {
+        if(++this.word >= this.wordStarts.length - 1) this.word = 0;
+        return this.word;
+    }
+
+    private int nextDocument() {
+        if(++this.document == this.corpus.documents.length) this.document = 0;
+        return this.document;
+    }
+
+    /** the mapper flushes its buffer once it holds this many postings, so the benchmarks do too **/
+    private void flush() {
+        if(this.P.size() >= InputPreprocessor.DEFAULT_MAPPER_BUFFER_ENTRIES) this.P.clear();
+    }
+
+    public void register(Bench bench) {
+
+        /** one Porter stem per operation **/
+        bench.add("indexing.stem", new Bench.Operation() {
+            public long run() {
+                int w = nextWord();
+                int start = wordStarts[w];
+                stemmer.add(words, start, wordStarts[w + 1] - start);
+                stemmer.stem();
+                return stemmer.getResultLength();
+            }
+        });
+
+        /** one stem per operation through the cache the mapper uses **/
+        bench.add("indexing.stemCached", new Bench.Operation() {
+            public long run() {
+                int w = nextWord();
+                int start = wordStarts[w];
+                return stems.stem(words, start, wordStarts[w + 1] - start).length();
+            }
+        });
+
+        /** tokenize one document: tags skipped, terms lower cased, nothing stemmed **/
+        bench.add("indexing.tokenize", new Bench.Operation() {
+            public long run() {
+                byte[] record = corpus.documents[nextDocument()];
+                tokenizer.reset(record, record.length);
+                int terms = 0;
+                while(tokenizer.nextTerm()) terms++;
+                return terms;
+            }
+        });
+
+        /** Posting.post of one document's already stemmed terms **/
+        bench.add("indexing.post", new Bench.Operation() {
+            public long run() {
+                int d = nextDocument();
+                flush();
+                for(String term : documentTerms[d]) P.post(term, docids[d]);
+                return P.size();
+            }
+        });
+
+        /** all the map side work for one document: tokenize, drop stop words, stem and post **/
+        bench.add("indexing.postRecord", new Bench.Operation() {
+            public long run() {
+                byte[] record = corpus.documents[nextDocument()];
+                flush();
+                return InputPreprocessor.postRecord(record, 0, record.length, tokenizer, stopWords, stems, P, counts) ? 1 : 0;
+            }
+        });
+    }
+}
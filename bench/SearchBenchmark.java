@@ -0,0 +1,110 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Index load time and query latency of VectorSpaceRetrievalSystem. The corpus is indexed
+ * with LocalIndexer into a temporary directory first, so a change to the index format or
+ * the scorer is measured against the same input as the code it replaces.
+ *
+ * The queries come from the collection itself: the title of each document as a multi term
+ * query, and the first title word that isn't a stop word as a single term query.
+ * Only search.multiTermCached goes through the result cache, the others score every query.
+ * The query benchmarks are thread safe, so Bench -threads runs them from several threads at once
+ * against the same caches, the way QueryServer and BatchSearcher use them.
+ */
+public class SearchBenchmark {
+
+    private final File directory;
+    private final String indexPath;
+    private final String vectorsPath;
+    private final VectorSpaceRetrievalSystem system;
+    private final VectorSpaceRetrievalSystem cachedSystem;
+    private final int k;
+    private final String[] singleTermQueries;
+    private final String[] multiTermQueries;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param pruning false scores term-at-a-time instead of with MaxScoreEvaluator
+     */
+    public SearchBenchmark(Corpus corpus, int k, boolean pruning) throws IOException {
+        StopWordSet stopWords = StopWordSet.load(VectorSpaceRetrievalSystem.DEFAULT_STOPWORDS);
+        this.directory = Files.createTempDirectory("index").toFile();
+        this.indexPath = new File(this.directory, "index.bin").getPath();
+        this.vectorsPath = new File(this.directory, "vectors.bin").getPath();
+        new LocalIndexer(stopWords, Runtime.getRuntime().availableProcessors()).index(corpus.file, this.indexPath, this.vectorsPath);
+
+        this.system = new VectorSpaceRetrievalSystem(this.indexPath, this.vectorsPath, VectorSpaceRetrievalSystem.DEFAULT_STOPWORDS);
+        this.system.setPruning(pruning);
+        this.system.setResultCacheSize(0);
+        this.cachedSystem = new VectorSpaceRetrievalSystem(this.indexPath, this.vectorsPath, VectorSpaceRetrievalSystem.DEFAULT_STOPWORDS);
+        this.cachedSystem.setPruning(pruning);
+        this.k = k;
+
+        ArrayList<String> single = new ArrayList<String>();
+        ArrayList<String> multi = new ArrayList<String>();
+        SGMLTokenizer tokenizer = new SGMLTokenizer();
+        StringBuilder title = new StringBuilder();
+        for(byte[] record : corpus.documents) {
+            tokenizer.reset(record, record.length);
+            title.setLength(0);
+            String first = null;
+            while(tokenizer.nextTerm()) {
+                if(tokenizer.field() != Fields.TITLE) continue;
+                char[] term = tokenizer.termBuffer();
+                int length = tokenizer.termLength();
+                if(title.length() > 0) title.append(' ');
+                title.append(term, 0, length);
+                if(first == null && length > 2 && !stopWords.contains(term, 0, length)) first = new String(term, 0, length);
+            }
+            if(first != null) single.add(first);
+            if(title.length() > 0) multi.add(title.toString());
+        }
+        this.singleTermQueries = single.toArray(new String[single.size()]);
+        this.multiTermQueries = multi.toArray(new String[multi.size()]);
+    }
+
+    private String nextQuery(String[] queries) {
+        return queries[(this.next.getAndIncrement() & Integer.MAX_VALUE) % queries.length];
+    }
+
+    public void register(Bench bench) {
+
+        /** map the index and read the stop words and document lengths, as the query server does on start up **/
+        bench.add("search.load", new Bench.Operation() {
+            public long run() throws IOException {
+                return new VectorSpaceRetrievalSystem(indexPath, vectorsPath, VectorSpaceRetrievalSystem.DEFAULT_STOPWORDS)
+                        .getIndex().getTermCount();
+            }
+        });
+
+        bench.add("search.singleTerm", new Bench.Operation() {
+            public long run() {
+                return system.search(nextQuery(singleTermQueries), k).size();
+            }
+        }, true);
+
+        bench.add("search.multiTerm", new Bench.Operation() {
+            public long run() {
+                return system.search(nextQuery(multiTermQueries), k).size();
+            }
+        }, true);
+
+        /** the same queries, answered from the result cache once they have all been seen **/
+        bench.add("search.multiTermCached", new Bench.Operation() {
+            public long run() {
+                return cachedSystem.search(nextQuery(multiTermQueries), k).size();
+            }
+        }, true);
+    }
+
+    /** delete the temporary index **/
+    public void close() {
+        new File(this.indexPath).delete();
+        new File(this.vectorsPath).delete();
+        this.directory.delete();
+    }
+}
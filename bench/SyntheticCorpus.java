@@ -0,0 +1,101 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Writes a scaled up collection in the input/cranfield.txt format, one <DOC> per line,
+ * to benchmark against something larger than the 1400 Cranfield documents.
+ *
+ * Every generated document copies the field lengths of a random source document and draws
+ * each word from all the words of that field in the source, so term frequencies follow the
+ * source distribution. A small share of the words get a random letter suffix so the
+ * vocabulary keeps growing with the collection, as it does in real text.
+ */
+public class SyntheticCorpus {
+
+    private static final String[] FIELDS = {"TITLE", "AUTHOR", "BIBLIO", "TEXT"};
+    private static final double NEW_WORD_RATE = 0.02;
+
+    private final ArrayList<String[][]> documents = new ArrayList<String[][]>(); //per document, the words of each field
+    private final ArrayList<ArrayList<String>> words = new ArrayList<ArrayList<String>>(); //per field, every word in the source
+
+    public SyntheticCorpus(String source) throws IOException {
+        for(int f = 0; f < FIELDS.length; f++) this.words.add(new ArrayList<String>());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(!line.contains("<DOC>")) continue;
+                String[][] fields = new String[FIELDS.length][];
+                for(int f = 0; f < FIELDS.length; f++) {
+                    fields[f] = field(line, FIELDS[f]);
+                    for(String w : fields[f]) this.words.get(f).add(w);
+                }
+                this.documents.add(fields);
+            }
+        } finally {
+            reader.close();
+        }
+        if(this.documents.isEmpty()) throw new IOException("No <DOC> lines in " + source);
+    }
+
+    public int getDocumentCount() { return this.documents.size(); }
+
+    /** words between <name> and </name>, none if the field is missing **/
+    private static String[] field(String line, String name) {
+        int start = line.indexOf("<" + name + ">");
+        int end = line.indexOf("</" + name + ">");
+        if(start < 0 || end < start) return new String[0];
+        String text = line.substring(start + name.length() + 2, end).trim();
+        return text.isEmpty() ? new String[0] : text.split("\\s+");
+    }
+
+    /**
+     * write count documents, docids 1 to count, same seed same output
+     */
+    public void write(String output, int count, long seed) throws IOException {
+        Random random = new Random(seed);
+        int vocabulary = Math.max(1, count / 10); //distinct suffixes, grows with the collection
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)));
+        try {
+            StringBuilder doc = new StringBuilder();
+            for(int docid = 1; docid <= count; docid++) {
+                String[][] shape = this.documents.get(random.nextInt(this.documents.size()));
+                doc.setLength(0);
+                doc.append(String.format("synthetic%07d <DOC> <DOCNO> %d </DOCNO> ", docid, docid));
+                for(int f = 0; f < FIELDS.length; f++) {
+                    ArrayList<String> pool = this.words.get(f);
+                    doc.append('<').append(FIELDS[f]).append("> ");
+                    for(int i = 0; i < shape[f].length; i++) {
+                        String w = pool.get(random.nextInt(pool.size()));
+                        doc.append(w);
+                        if(random.nextDouble() < NEW_WORD_RATE) suffix(doc, random.nextInt(vocabulary));
+                        doc.append(' ');
+                    }
+                    doc.append("</").append(FIELDS[f]).append("> ");
+                }
+                doc.append("</DOC> ");
+                out.println(doc);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** n in base 26 as lower case letters, so the tokenizer keeps it as part of the word **/
+    private static void suffix(StringBuilder doc, int n) {
+        do {
+            doc.append((char) ('a' + n % 26));
+            n /= 26;
+        } while(n > 0);
+    }
+
+    /**
+     * usage: SyntheticCorpus input/cranfield.txt output documents [seed]
+     */
+    public static void main(String[] args) throws IOException {
+        SyntheticCorpus corpus = new SyntheticCorpus(args[0]);
+        corpus.write(args[1], Integer.parseInt(args[2]), args.length > 3 ? Long.parseLong(args[3]) : 1L);
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javafx.util.Pair;
+
+/**
+ * Runs a whole query set against one loaded VectorSpaceRetrievalSystem on a fixed thread pool
+ * and writes a TREC run file: "qid Q0 docid rank score tag" per result.
+ *
+ * Workers pull the next query off a shared counter, so a slow query never holds up a
+ * whole slice of the set. The index and vectors are read only and shared; everything a
+ * query mutates (score accumulator, top k heap) belongs to the worker running it, so
+ * workers never contend and throughput follows the number of cores.
+ *
+ * Query files are either the Cranfield cran.qry format (".I id" then ".W" and the text) or
+ * one "qid query text" per line. The query text is passed on as it is, search normalizes it
+ * the same way for every caller.
+ */
+public class BatchSearcher {
+
+    private final VectorSpaceRetrievalSystem vsrs;
+    private final int k;
+    private final int threads;
+
+    public BatchSearcher(VectorSpaceRetrievalSystem vsrs, int k, int threads) {
+        this.vsrs = vsrs;
+        this.k = k;
+        this.threads = threads;
+    }
+
+    /**
+     * @return (qid, query text) in file order
+     */
+    public static List<Pair<String, String>> readQueries(BufferedReader reader) throws IOException {
+        ArrayList<Pair<String, String>> queries = new ArrayList<Pair<String, String>>();
+        String line;
+        String qid = null;
+        StringBuilder text = null; //non null while reading a cran.qry .W section
+        while((line = reader.readLine()) != null) {
+            if(line.startsWith(".I")) {
+                if(qid != null && text != null) queries.add(new Pair<String, String>(qid, text.toString().trim()));
+                qid = line.substring(2).trim();
+                text = null;
+            } else if(line.startsWith(".W")) {
+                text = new StringBuilder();
+            } else if(text != null) {
+                text.append(line).append(' ');
+            } else if(qid == null) {
+                line = line.trim();
+                int split = line.indexOf(' ');
+                int tab = line.indexOf('\t');
+                if(split < 0 || (tab >= 0 && tab < split)) split = tab;
+                if(split > 0) queries.add(new Pair<String, String>(line.substring(0, split), line.substring(split + 1).trim()));
+            }
+        }
+        if(qid != null && text != null) queries.add(new Pair<String, String>(qid, text.toString().trim()));
+        return queries;
+    }
+
+    public void run(final List<Pair<String, String>> queries, String tag, PrintWriter out) throws IOException {
+        final AtomicReferenceArray<List<Pair<Integer, Double>>> results = new AtomicReferenceArray<List<Pair<Integer, Double>>>(queries.size());
+        final AtomicInteger next = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        try {
+            ArrayList<Future<?>> workers = new ArrayList<Future<?>>();
+            for(int t = 0; t < this.threads; t++) {
+                workers.add(pool.submit(new Runnable() {
+                    public void run() {
+                        int q;
+                        while((q = next.getAndIncrement()) < queries.size())
+                            results.set(q, vsrs.search(queries.get(q).getValue(), k));
+                    }
+                }));
+            }
+            for(Future<?> worker : workers) worker.get();
+        } catch(Exception e) {
+            throw new IOException("Batch query failed.", e);
+        } finally {
+            pool.shutdown();
+        }
+
+        for(int q = 0; q < results.length(); q++) {
+            int rank = 1;
+            for(Pair<Integer, Double> result : results.get(q))
+                out.println(queries.get(q).getKey() + " Q0 " + result.getKey() + " " + rank++ + " " + result.getValue() + " " + tag);
+        }
+        out.flush();
+    }
+
+    /**
+     * read the query file at queriesPath and write the run to runPath, or stdout for "-"
+     */
+    public void run(String queriesPath, String runPath, String tag) throws IOException {
+        List<Pair<String, String>> queries;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(queriesPath), StandardCharsets.UTF_8));
+        try {
+            queries = readQueries(reader);
+        } finally {
+            reader.close();
+        }
+        OutputStream stream = runPath.equals("-") ? System.out : new FileOutputStream(runPath);
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8)));
+        try {
+            run(queries, tag, out);
+        } finally {
+            if(stream == System.out) out.flush();
+            else out.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.*;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+
+/**
+ * Writes the document vector file read by DocumentVectors from the records emitted by
+ * WeightAggregatorReducer. Each record is (docid, encoded vector) where the encoded vector is
+ *   double squared length, vint n, n * (vint termId gap, float weight)
+ * with the pairs sorted by termId, the term ids being ordinals in the PostingIndex dictionary.
+ *
+ * File layout, all values big endian:
+ *   header   magic, version, max docid, document count, long lengths offset, long offsets offset
+ *   vectors  the vint/float part of each record, in the order they were added
+ *   lengths  (max docid + 1) doubles, squared vector length per docid, 0 for missing documents
+ *   offsets  (max docid + 1) longs, file offset of each vector, -1 for missing documents
+ *
+ * The tables go after the vectors so the file is written in one pass without knowing max docid up front.
+ */
+public class DocumentVectorWriter {
+
+    private final String output;
+    private DataOutputStream out;
+    private long position;
+    private double[] lengths;
+    private long[] offsets;
+    private int maxDocId;
+    private int count;
+
+    public DocumentVectorWriter(String output) throws IOException {
+        this.output = output;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+        for(int i = 0; i < DocumentVectors.HEADER_SIZE; i++) this.out.writeByte(0); //rewritten in close
+        this.position = DocumentVectors.HEADER_SIZE;
+        this.lengths = new double[1024];
+        this.offsets = new long[1024];
+        Arrays.fill(this.offsets, -1L);
+        this.maxDocId = 0;
+        this.count = 0;
+    }
+
+    /**
+     * @param packed termId in the high 32 bits and the float bits of the weight in the low 32, sorted ascending
+     */
+    public static byte[] encode(double length, long[] packed, int n) {
+        int size = 8 + VByte.size(n);
+        int previous = 0;
+        for(int i = 0; i < n; i++) {
+            int termId = (int) (packed[i] >>> 32);
+            size += VByte.size(termId - previous) + 4;
+            previous = termId;
+        }
+        byte[] bytes = new byte[size];
+        long bits = Double.doubleToLongBits(length);
+        for(int i = 0; i < 8; i++) bytes[i] = (byte) (bits >>> (56 - 8 * i));
+        int p = VByte.write(bytes, 8, n);
+        previous = 0;
+        for(int i = 0; i < n; i++) {
+            int termId = (int) (packed[i] >>> 32);
+            int weight = (int) packed[i];
+            p = VByte.write(bytes, p, termId - previous);
+            bytes[p++] = (byte) (weight >>> 24);
+            bytes[p++] = (byte) (weight >>> 16);
+            bytes[p++] = (byte) (weight >>> 8);
+            bytes[p++] = (byte) weight;
+            previous = termId;
+        }
+        return bytes;
+    }
+
+    public void add(int docid, byte[] record, int recordLength) throws IOException {
+        if(docid >= this.lengths.length) {
+            int capacity = Math.max(docid + 1, this.lengths.length * 2);
+            int old = this.offsets.length;
+            this.lengths = Arrays.copyOf(this.lengths, capacity);
+            this.offsets = Arrays.copyOf(this.offsets, capacity);
+            Arrays.fill(this.offsets, old, capacity, -1L);
+        }
+        long bits = 0;
+        for(int i = 0; i < 8; i++) bits = (bits << 8) | (record[i] & 0xFF);
+        this.lengths[docid] = Double.longBitsToDouble(bits);
+        this.offsets[docid] = this.position;
+        this.out.write(record, 8, recordLength - 8);
+        this.position += recordLength - 8;
+        if(docid > this.maxDocId) this.maxDocId = docid;
+        this.count++;
+    }
+
+    /**
+     * add every record of a WeightAggregatorReducer output file
+     */
+    public void addSequenceFile(Configuration conf, Path part) throws IOException {
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part));
+        try {
+            IntWritable docid = new IntWritable();
+            BytesWritable record = new BytesWritable();
+            while(reader.next(docid, record))
+                add(docid.get(), record.getBytes(), record.getLength());
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void close() throws IOException {
+        long lengthsOffset = this.position;
+        for(int d = 0; d <= this.maxDocId; d++) this.out.writeDouble(this.lengths[d]);
+        long offsetsOffset = lengthsOffset + 8L * (this.maxDocId + 1);
+        for(int d = 0; d <= this.maxDocId; d++) this.out.writeLong(this.offsets[d]);
+        this.out.close();
+
+        RandomAccessFile file = new RandomAccessFile(this.output, "rw");
+        try {
+            file.writeInt(DocumentVectors.MAGIC);
+            file.writeInt(DocumentVectors.VERSION);
+            file.writeInt(this.maxDocId);
+            file.writeInt(this.count);
+            file.writeLong(lengthsOffset);
+            file.writeLong(offsetsOffset);
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read side of the document vector file written by DocumentVectorWriter.
+ * Only the squared vector lengths are read when the file is opened, they are all cosine
+ * scoring needs. The sparse (termId, weight) vectors are memory mapped on first use,
+ * for re-ranking or "more like this" queries.
+ */
+public class DocumentVectors {
+
+    public static final int MAGIC = 0x56535256; //"VSRV"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 4 * 4 + 2 * 8;
+
+    private final String path;
+    private final int maxDocId;
+    private final int count;
+    private final long offsetsOffset;
+    private final double[] lengths;
+    private volatile MappedByteBuffer vectors;
+
+    private DocumentVectors(String path, int maxDocId, int count, long offsetsOffset, double[] lengths) {
+        this.path = path;
+        this.maxDocId = maxDocId;
+        this.count = count;
+        this.offsetsOffset = offsetsOffset;
+        this.lengths = lengths;
+    }
+
+    public static DocumentVectors open(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            if(file.readInt() != MAGIC)
+                throw new IOException("Not a document vector file.");
+            int version = file.readInt();
+            if(version != VERSION)
+                throw new IOException("Unsupported document vector version: " + version);
+            int maxDocId = file.readInt();
+            int count = file.readInt();
+            long lengthsOffset = file.readLong();
+            long offsetsOffset = file.readLong();
+
+            ByteBuffer buffer = ByteBuffer.allocate(8 * (maxDocId + 1));
+            FileChannel channel = file.getChannel();
+            while(buffer.hasRemaining())
+                if(channel.read(buffer, lengthsOffset + buffer.position()) < 0)
+                    throw new IOException("Truncated document vector file: " + path);
+            buffer.flip();
+            double[] lengths = new double[maxDocId + 1];
+            buffer.asDoubleBuffer().get(lengths);
+            return new DocumentVectors(path, maxDocId, count, offsetsOffset, lengths);
+        } finally {
+            file.close();
+        }
+    }
+
+    public int getMaxDocId() { return this.maxDocId; }
+    public int getDocumentCount() { return this.count; }
+
+    /** squared length of the document's tf * idf vector, 0 if the document has no vector **/
+    public double length(int docid) {
+        return docid < this.lengths.length ? this.lengths[docid] : 0.0;
+    }
+
+    /**
+     * @return a cursor over the document's (termId, weight) pairs in termId order, or null if the document has none
+     */
+    public Vector vector(int docid) throws IOException {
+        if(docid > this.maxDocId) return null;
+        MappedByteBuffer buffer = map();
+        long offset = buffer.getLong((int) (this.offsetsOffset + 8L * docid));
+        if(offset < 0) return null;
+        return new Vector(buffer, (int) offset);
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        MappedByteBuffer buffer = this.vectors;
+        if(buffer == null) {
+            synchronized(this) {
+                if(this.vectors == null) {
+                    RandomAccessFile file = new RandomAccessFile(this.path, "r");
+                    try {
+                        FileChannel channel = file.getChannel();
+                        if(channel.size() > Integer.MAX_VALUE)
+                            throw new IOException("Document vector file larger than 2GB: " + this.path);
+                        this.vectors = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    } finally {
+                        file.close();
+                    }
+                }
+                buffer = this.vectors;
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Call next() before reading the first pair.
+     */
+    public static class Vector {
+
+        private final ByteBuffer buffer;
+        private final int[] position;
+        private int remaining;
+        private int termId;
+        private float weight;
+
+        private Vector(ByteBuffer buffer, int offset) {
+            this.buffer = buffer;
+            this.position = new int[]{offset};
+            this.remaining = VByte.read(buffer, this.position);
+            this.termId = 0;
+        }
+
+        public boolean next() {
+            if(this.remaining == 0) return false;
+            this.remaining--;
+            this.termId += VByte.read(this.buffer, this.position);
+            this.weight = this.buffer.getFloat(this.position[0]);
+            this.position[0] += 4;
+            return true;
+        }
+
+        public int termId() { return this.termId; }
+        public float weight() { return this.weight; }
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * The Cranfield document fields that are indexed on their own, next to the usual terms.
+ *
+ * A term in a field is also posted as "field:term" (e.g. title:wing). Field terms get their own
+ * df and idf but are left out of the document vectors, so |d| and every plain query score stay
+ * what they were. At query time each plain term can pull in its field terms with a boost,
+ * see VectorSpaceRetrievalSystem.setBoost. ':' is a tokenizer delimiter, so a plain term can
+ * never look like a field term.
+ */
+public final class Fields {
+
+    public static final int NONE = 0;
+    public static final int TITLE = 1;
+    public static final int AUTHOR = 2;
+    public static final int BIBLIO = 3;
+    public static final int TEXT = 4;
+    public static final int COUNT = 5;
+
+    public static final char SEPARATOR = ':';
+
+    private static final String[] NAMES = {"", "title", "author", "biblio", "text"};
+
+    private Fields() { }
+
+    public static String name(int field) { return NAMES[field]; }
+
+    /** @return the field called name (any case), -1 if there is none **/
+    public static int field(String name) {
+        for(int f = 1; f < COUNT; f++)
+            if(NAMES[f].equalsIgnoreCase(name)) return f;
+        return -1;
+    }
+
+    /** @return the field named by bytes[start, end) (any case), -1 if there is none **/
+    public static int field(byte[] bytes, int start, int end) {
+        for(int f = 1; f < COUNT; f++) {
+            String name = NAMES[f];
+            if(name.length() != end - start) continue;
+            int i = 0;
+            while(i < name.length() && (bytes[start + i] | 0x20) == name.charAt(i)) i++;
+            if(i == name.length()) return f;
+        }
+        return -1;
+    }
+
+    public static String term(int field, String term) {
+        return field == NONE ? term : NAMES[field] + SEPARATOR + term;
+    }
+
+    public static boolean isFieldTerm(String term) {
+        return term.indexOf(SEPARATOR) >= 0;
+    }
+
+    public static boolean isFieldTerm(byte[] term, int length) {
+        for(int i = 0; i < length; i++)
+            if(term[i] == SEPARATOR) return true;
+        return false;
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of non negative long values (latencies in ns, postings per query, ...) in log-linear
+ * buckets, the layout HdrHistogram uses: values below SUB_BUCKETS get a bucket each, above that
+ * every power of two is split into SUB_BUCKETS / 2 equal buckets. So any percentile is reported
+ * within 1 / 64 of the true value, over the whole long range, in a fixed 3776 counts.
+ *
+ * record() is a couple of shifts and an atomic increment, safe from any number of threads.
+ * Reading while others record gives a snapshot that may be a few values behind, fine for metrics.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(0L);
+
+    public void record(long value) {
+        if(value < 0) value = 0;
+        this.counts.incrementAndGet(index(value));
+        this.count.increment();
+        this.sum.add(value);
+        long m;
+        while(value > (m = this.max.get()) && !this.max.compareAndSet(m, value)) { }
+        while(value < (m = this.min.get()) && !this.min.compareAndSet(m, value)) { }
+    }
+
+    static int index(long value) {
+        if(value < SUB_BUCKETS) return (int) value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; //leaves value >> shift in [HALF, SUB_BUCKETS)
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /** largest value that lands in bucket i **/
+    static long highest(int i) {
+        if(i < SUB_BUCKETS) return i;
+        int shift = (i - SUB_BUCKETS) / HALF + 1;
+        long m = (i - SUB_BUCKETS) % HALF + HALF;
+        return ((m + 1) << shift) - 1;
+    }
+
+    public long getCount() { return this.count.sum(); }
+    public long getMax() { return this.max.get(); }
+    public long getMin() { return getCount() == 0 ? 0 : this.min.get(); }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0.0 : (double) this.sum.sum() / n;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return a value at least percentile % of the recorded values are at or below, 0 if there are none
+     */
+    public long percentile(double percentile) {
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++) total += this.counts.get(i);
+        if(total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if(seen >= rank) return Math.min(highest(i), getMax());
+        }
+        return getMax();
+    }
+}
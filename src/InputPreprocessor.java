@@ -1,183 +1,252 @@
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.StringTokenizer;
 import java.io.IOException;
 import java.util.HashMap;
 
-import javafx.util.Pair;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 
 /**
  * Created by chaneylc on 9/25/15.
  */
 public class InputPreprocessor {
 
+    /** name the binary term dictionary is linked under in the distributed cache **/
+    public static final String INDEX_CACHE_NAME = "index.bin";
+
+    /** name the stop word list is linked under in the distributed cache **/
+    public static final String STOPWORDS_CACHE_NAME = "stopwords.txt";
+
+    /** (term, docid) pairs SGMLTokenizerMapper buffers before it flushes them to the shuffle **/
+    public static final String MAPPER_BUFFER_ENTRIES = "vsrs.mapper.buffer.entries";
+    public static final int DEFAULT_MAPPER_BUFFER_ENTRIES = 100000;
+
+    /** surface forms SGMLTokenizerMapper keeps stems for **/
+    public static final String STEM_CACHE_SIZE = "vsrs.stem.cache.size";
+    public static final int DEFAULT_STEM_CACHE_SIZE = 65536;
+
+    /**
+     * Counters of the indexing job. DOCUMENTS is N, read back once the job is done.
+     * Tasks sum them in a long[] indexed by ordinal and add that to the job counters once, in cleanup.
+     */
+    public enum IndexCounters {
+        DOCUMENTS, //documents with at least one term posted
+        TOKENS, //every term the tokenizer returned
+        STOP_WORDS, //tokens dropped as stop words
+        SHORT_TERMS, //tokens dropped for being 2 characters or less
+        POSTINGS_EMITTED, //(term, docid) records written to the shuffle
+        BYTES_EMITTED, //serialized size of those records
+        STEM_CACHE_HITS,
+        STEM_CACHE_MISSES
+    }
+
     private HashSet<Integer> N;
 
-    public static class SGMLTokenizerMapper extends Mapper<Object, Text, Text, Text>{
+    /**
+     * Tokenize one document of the collection (<DOC> ... </DOC>, docid from its <DOCNO>) and
+     * post its stemmed terms to P. Shared by SGMLTokenizerMapper and LocalIndexer.
+     *
+     * Tokenizes straight from the record bytes and looks the stem up in the stem cache,
+     * so apart from cache misses nothing is allocated per token. A term inside one of the
+     * Fields is posted a second time as its field term, e.g. title:wing.
+     * @param counts IndexCounters, indexed by ordinal, the token counts and DOCUMENTS are added to
+     * @return false if nothing in the record was posted
+     */
+    public static boolean postRecord(byte[] bytes, int offset, int length, SGMLTokenizer tokenizer, StopWordSet stopWords, StemCache stems, Posting P, long[] counts) {
+        tokenizer.reset(bytes, offset, length);
+        int docno = tokenizer.readDocNo();
+        if(docno < 0) return false;
+        Integer docid = docno; //boxed once, Posting keys every map on it
+
+        boolean posted = false;
+        while (tokenizer.nextTerm()) {
+            char[] next = tokenizer.termBuffer();
+            int termLength = tokenizer.termLength();
+            counts[IndexCounters.TOKENS.ordinal()]++;
+            /**
+             * I noticed that some of the stemmed output still had words like: 'ae', 'ce', 'z'
+             * so I limit the words to more than 2 characters
+             */
+            if (termLength <= 2) {
+                counts[IndexCounters.SHORT_TERMS.ordinal()]++;
+            } else if (stopWords.contains(next, 0, termLength)) {
+                counts[IndexCounters.STOP_WORDS.ordinal()]++;
+            } else {
+                P.post(stems.stem(next, 0, termLength), docid);
+                if(tokenizer.field() != Fields.NONE)
+                    P.post(stems.stem(next, 0, termLength, tokenizer.field()), docid);
+                posted = true;
+            }
+        }
+        if(posted) counts[IndexCounters.DOCUMENTS.ordinal()]++;
+        return posted;
+    }
 
-        private Posting P;
+    public static class SGMLTokenizerMapper extends Mapper<Object, Text, TermDocidWritable, PostingWritable>{
 
-        protected void setup(Context context) {
+        private Posting P;
+        private StopWordSet stopWords;
+        private int bufferEntries;
+        private Text term;
+        private TermDocidWritable termKey;
+        private PostingWritable docFrequency;
+        private SGMLTokenizer tokenizer;
+        private StemCache stems;
+        private long[] counts;
+
+        protected void setup(Context context) throws IOException {
             this.P = new Posting();
+            this.stopWords = StopWordSet.load(STOPWORDS_CACHE_NAME);
+            this.bufferEntries = context.getConfiguration().getInt(MAPPER_BUFFER_ENTRIES, DEFAULT_MAPPER_BUFFER_ENTRIES);
+            this.term = new Text();
+            this.termKey = new TermDocidWritable();
+            this.docFrequency = new PostingWritable();
+            this.tokenizer = new SGMLTokenizer();
+            this.stems = new StemCache(context.getConfiguration().getInt(STEM_CACHE_SIZE, DEFAULT_STEM_CACHE_SIZE));
+            this.counts = new long[IndexCounters.values().length];
         }
 
         public void map(Object key, Text value, Context context
         ) throws IOException, InterruptedException {
 
-            Configuration conf = context.getConfiguration();
-
-            //replace all SGML tag components, maybe a seperate map reduce job would make this more efficient.
-            StringTokenizer getId = new StringTokenizer(value.toString().replaceAll("(\\<.*?\\>)", ""), " ");
-            getId.nextToken(); //kill cranfield
-            //output for this map will emit (docid, List<String>) where the Strings have no SGML components but have not been tokenized
-            int docid = Integer.parseInt(getId.nextToken());
-
-            StringBuilder noCranfieldNoDocId = new StringBuilder();
-            while (getId.hasMoreTokens()) noCranfieldNoDocId.append(getId.nextToken() + " ");
-
-            StringTokenizer st = new StringTokenizer(noCranfieldNoDocId.toString(), " :\t\n0123456789.,\\/'~`!?!@#$%^&*()_+-=");
-
-            while (st.hasMoreElements()) {
-                String next = st.nextToken().toLowerCase().trim();
-                /**
-                 * I noticed that some of the stemmed output still had words like: 'ae', 'ce', 'z'
-                 * so I limit the words to more than 2 characters
-                 */
-                if ((conf.get(next) == null) && next.length() > 2) {
-                    /**
-                     * naively use new Stemmer for each word,
-                     * probably unnecessary and very inefficient for map reduce jobs
-                     * Maybe there is a distributed implementation of stemming?
-                     */
-                    Stemmer stemmer = new Stemmer(); //Porter stemmer implementation
-                    stemmer.add(next.toCharArray(), next.length());
-                    stemmer.stem();
-                    String stemmedWord = stemmer.toString();
-                    this.P.post(stemmedWord, docid);
-                    //context.write(new IntWritable(docid), new Text(stemmedWord));
-                }
-            }
-        }
+            postRecord(value.getBytes(), 0, value.getLength(), this.tokenizer, this.stopWords, this.stems, this.P, this.counts); //DOCUMENTS is N, each document is mapped exactly once
 
-        protected void cleanup(Context context) throws IOException, InterruptedException {
-            //System.out.println(this.posting.toString());
-            for(String term : this.P.posting.keySet()) {
-                HashMap<Integer, Integer> docFreqs = this.P.posting.get(term).getValue();
-                for(Integer docid : docFreqs.keySet())
-                    context.write(new Text(term), new Text(docid + " " + docFreqs.get(docid).toString()));
-            }
+            /**
+             * in-mapper combining with a bounded buffer, flushed between documents so every
+             * buffered document is complete and its max term frequency is known
+             */
+            if(this.P.size() >= this.bufferEntries) flush(context);
         }
-    }
-
-    public static class RawInputReducer extends Reducer<Text,Text,Text,Text> {
-
-        private HashSet<Integer> N;
-        private HashMap<Integer, Integer> maxFrequencies;
-        private HashMap<String, Pair<Integer, Text>> encodedPosting;
 
-        protected void setup(Context ctx) {
-            this.N = new HashSet<Integer>();
-            this.maxFrequencies = new HashMap<Integer, Integer>();
-            this.encodedPosting = new HashMap<String, Pair<Integer, Text>>();
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            flush(context);
+            this.counts[IndexCounters.STEM_CACHE_HITS.ordinal()] = this.stems.getHits();
+            this.counts[IndexCounters.STEM_CACHE_MISSES.ordinal()] = this.stems.getMisses();
+            for(IndexCounters counter : IndexCounters.values())
+                context.getCounter(counter).increment(this.counts[counter.ordinal()]);
         }
 
-        public void reduce(Text key, Iterable<Text> values, Context ctx) throws IOException, InterruptedException {
-
-            Configuration conf = ctx.getConfiguration();
-            StringBuilder sb = new StringBuilder();
-            int localDocCount = 0;
-            for(Text term : values) {
-                localDocCount++;
-                StringTokenizer st = new StringTokenizer(term.toString(), " ");
-                Integer docid = Integer.parseInt(st.nextToken());
-                Integer f = Integer.parseInt(st.nextToken());
-                if(this.maxFrequencies.containsKey(docid)) {
-                    if(this.maxFrequencies.get(docid) < f)
-                        this.maxFrequencies.put(docid, f);
-                } else {
-                    this.maxFrequencies.put(docid, f);
+        private void flush(Context context) throws IOException, InterruptedException {
+            for(String term : this.P.posting.keySet()) {
+                HashMap<Integer, Integer> docFreqs = this.P.posting.get(term).getValue();
+                this.term.set(term);
+                for(Integer docid : docFreqs.keySet()) {
+                    int tf = docFreqs.get(docid);
+                    int maxF = this.P.getFrequency(docid);
+                    this.termKey.set(this.term, docid);
+                    this.docFrequency.set(docid, tf, maxF);
+                    context.write(this.termKey, this.docFrequency);
+                    this.counts[IndexCounters.POSTINGS_EMITTED.ordinal()]++;
+                    this.counts[IndexCounters.BYTES_EMITTED.ordinal()] += this.termKey.getSerializedSize() + WritableUtils.getVIntSize(docid)
+                            + WritableUtils.getVIntSize(tf) + WritableUtils.getVIntSize(maxF);
                 }
-                N.add(docid);
-                sb.append(' ');
-                sb.append(term);
             }
-            this.encodedPosting.put(key.toString(), new Pair<Integer, Text>(localDocCount, new Text(sb.toString())));
+            this.P.clear();
         }
+    }
 
-        protected void cleanup(Context ctx) throws IOException, InterruptedException {
-            ctx.getCounter("N", "N").increment(N.size());
-            for(String term : this.encodedPosting.keySet()) {
-                Pair<Integer, Text> post = this.encodedPosting.get(term);
-                StringTokenizer st = new StringTokenizer(post.getValue().toString(), " ");
-                StringBuilder sb = new StringBuilder();
-                while(st.hasMoreTokens()) {
-                    Integer docid = Integer.parseInt(st.nextToken());
-                    Integer maxF = this.maxFrequencies.get(docid);
-                    String f = st.nextToken();
-                    sb.append(docid);
-                    sb.append(' ');
-                    sb.append(maxF);
-                    sb.append(' ');
-                    sb.append(f);
-                    sb.append(' ');
-                }
-                ctx.write(new Text(term), new Text(post.getKey() + " " + sb.toString()));
+    /**
+     * Writes each term's postings as they arrive, in docid order thanks to TermDocidWritable's
+     * secondary sort, so nothing is kept, not even within a term.
+     *
+     * SGMLDocumentInputFormat never splits a document across records and SGMLTokenizerMapper posts a
+     * whole record before it flushes, so every (term, docid) reaches the reducer exactly once. The
+     * maxF on each posting is only right under that invariant (a document's largest tf can't be
+     * rebuilt from two partial counts), so a docid seen twice fails the job instead of being summed.
+     */
+    public static class RawInputReducer extends Reducer<TermDocidWritable,PostingWritable,Text,PostingWritable> {
+
+        public void reduce(TermDocidWritable key, Iterable<PostingWritable> values, Context ctx) throws IOException, InterruptedException {
+            int previous = -1;
+            for(PostingWritable p : values) {
+                if(p.getDocid() == previous)
+                    throw new IOException("Document " + previous + " was posted twice for " + key.getTerm() + ", a document must be a single input record.");
+                previous = p.getDocid();
+                ctx.write(key.getTerm(), p);
             }
         }
     }
 
-    public static class PostingTokenizerMapper extends Mapper<Object, Text, IntWritable, DoubleWritable> {
+    public static class PostingTokenizerMapper extends Mapper<Text, PostingWritable, IntWritable, TermWeightWritable> {
 
         private Long N;
-
-        protected void setup(Context ctx) {
+        private PostingIndex index;
+        private IntWritable docKey;
+        private TermWeightWritable termWeight;
+        private Text term; //RawInputReducer writes a term's postings back to back, the term is looked up once
+        private int termId;
+        private double idf;
+
+        protected void setup(Context ctx) throws IOException {
             this.N = Long.parseLong(ctx.getConfiguration().get("N"));
+            /** the term dictionary written after the first job is shipped in the cache, it gives every term its id **/
+            this.index = PostingIndex.open(INDEX_CACHE_NAME);
+            this.docKey = new IntWritable();
+            this.termWeight = new TermWeightWritable();
+            this.term = null;
         }
 
-        public void map(Object key, Text value, Context ctx) throws IOException, InterruptedException {
+        public void map(Text term, PostingWritable p, Context ctx) throws IOException, InterruptedException {
             /**
-             * Posting is in the form of key:term value:docCount docid1 maxFreqDoc1 tf1 ... docidn maxFreqDocN tfn
+             * Posting is in the form of key:term value:(docid, tf, maxFreqDoc), one per record,
+             * df comes from the index
              */
-            StringTokenizer st = new StringTokenizer(value.toString(), "\t "); //key val separated by tab, vals by space
-            String term = st.nextToken(); //kill the term
-            Integer docCount = Integer.parseInt(st.nextToken());
-            while(st.hasMoreTokens()) {
-                Integer docid = Integer.parseInt(st.nextToken());
-                Double maxF = Double.parseDouble(st.nextToken());
-                Double f = Double.parseDouble(st.nextToken());
-                Double idf = Math.log10(this.N.doubleValue() / docCount.doubleValue()) / Math.log10(2.0);
-                Double tf = f / maxF;
-                ctx.write(new IntWritable(docid), new DoubleWritable(tf * idf));
+            if(this.term == null || !this.term.equals(term)) {
+                this.term = new Text(term);
+                this.termId = Fields.isFieldTerm(term.getBytes(), term.getLength()) ? -1 : this.index.find(term.toString()); //field terms are not part of the document vectors
+                if(this.termId >= 0) this.idf = Weighting.idf(this.N, this.index.df(this.termId));
             }
+            if(this.termId < 0) return;
+            this.docKey.set(p.getDocid());
+            this.termWeight.set(this.termId, Weighting.weight(p.getTf(), p.getMaxF(), this.idf));
+            ctx.write(this.docKey, this.termWeight);
         }
     }
 
-    public static class WeightAggregatorReducer extends Reducer<IntWritable,DoubleWritable,IntWritable,Text> {
-
-        public void reduce(IntWritable key, Iterable<DoubleWritable> tfs, Context ctx) throws IOException, InterruptedException {
-            Double sum = 0.0;
-            StringBuilder sb = new StringBuilder(); //create vector for document and length
-            for(DoubleWritable w : tfs) {
-                sb.append(w.get());
-                sb.append(' ');
-                sum += Math.pow(w.get(), 2); //increment weight by (f * idf)^2
+    /**
+     * Emits each document's squared vector length and its sparse (termId, weight) vector sorted
+     * by termId, encoded with DocumentVectorWriter.encode for the document vector file.
+     */
+    public static class WeightAggregatorReducer extends Reducer<IntWritable,TermWeightWritable,IntWritable,BytesWritable> {
+
+        private long[] packed = new long[256];
+
+        public void reduce(IntWritable key, Iterable<TermWeightWritable> tfs, Context ctx) throws IOException, InterruptedException {
+            double sum = 0.0;
+            int n = 0;
+            for(TermWeightWritable w : tfs) {
+                if(n == this.packed.length) this.packed = Arrays.copyOf(this.packed, n * 2);
+                float weight = (float) w.getWeight();
+                this.packed[n++] = ((long) w.getTermId() << 32) | (Float.floatToIntBits(weight) & 0xFFFFFFFFL);
+                sum += Math.pow(w.getWeight(), 2); //increment weight by (f * idf)^2
             }
-            ctx.write(key, new Text(sum.toString() + "\t" + sb.toString()));
+            Arrays.sort(this.packed, 0, n); //term ids are non negative so this sorts by term id
+            ctx.write(key, new BytesWritable(DocumentVectorWriter.encode(sum, this.packed, n)));
         }
     }
 
+    /**
+     * usage: InputPreprocessor stopwords input preOutput postOutput [index.bin] [vectors.bin]
+     * the binary index is written to the job's file system, default preOutput/index.bin, so the weight
+     * job's tasks can read it from the distributed cache. The vector file is written to the local file
+     * system, default postOutput/vectors.bin. With the default (local) file system both end up where
+     * VectorSpaceRetrievalSystem looks for them, on HDFS copy index.bin down (hadoop fs -get) to search it.
+     */
     public static void main(String[] args) throws IOException, InterruptedException, ClassNotFoundException {
 
         Configuration conf = new Configuration();
@@ -188,6 +257,8 @@ public class InputPreprocessor {
         Path preInput = new Path(args[1]);
         Path preOutput = new Path(args[2]);
         Path postOutput = new Path(args[3]);
+        Path indexOutput = args.length > 4 ? new Path(args[4]) : new Path(preOutput, "index.bin");
+        String vectorsOutput = args.length > 5 ? args[5] : new Path(postOutput, "vectors.bin").toString();
         /** delete output folder if it alrady exists **/
 
         if(!fs.exists(preInput) || !fs.exists(stopWords))
@@ -197,21 +268,24 @@ public class InputPreprocessor {
         if(fs.exists(postOutput))
             fs.delete(postOutput, true);
 
-        /**
-         * pre-pre processing ;)
-         * We need some way to access stop words inside the mapper class, in Hadoop 2.0
-         * we can specify these values with conf.set (which is what I do) but I'm not sure if this is inefficient.
-         */
-        for(String stopWord: Files.readAllLines(Paths.get(args[0])))
-            conf.set(stopWord, "1"); //set value 'stop word' to 1 if it is a stop word
-
-
         Job preprocessJob = Job.getInstance(conf, "SGML Raw Input Preprocessor");
         preprocessJob.setJarByClass(VectorSpaceRetrievalSystem.class);
+        preprocessJob.setInputFormatClass(SGMLDocumentInputFormat.class); //one record per <DOC>, splits at document boundaries
         preprocessJob.setMapperClass(SGMLTokenizerMapper.class);
         preprocessJob.setReducerClass(RawInputReducer.class);
+        preprocessJob.setPartitionerClass(TermDocidWritable.TermPartitioner.class);
+        preprocessJob.setGroupingComparatorClass(TermDocidWritable.TermComparator.class); //postings reach the reducer sorted by docid
+        preprocessJob.setMapOutputKeyClass(TermDocidWritable.class);
+        preprocessJob.setMapOutputValueClass(PostingWritable.class);
         preprocessJob.setOutputKeyClass(Text.class);
-        preprocessJob.setOutputValueClass(Text.class);
+        preprocessJob.setOutputValueClass(PostingWritable.class);
+        preprocessJob.setOutputFormatClass(SequenceFileOutputFormat.class);
+        /**
+         * pre-pre processing ;)
+         * the stop word list is shipped once through the distributed cache and loaded by each
+         * mapper into a StopWordSet, instead of one Configuration entry per word
+         */
+        preprocessJob.addCacheFile(URI.create(fs.makeQualified(stopWords).toUri() + "#" + STOPWORDS_CACHE_NAME));
 
         FileInputFormat.addInputPath(preprocessJob, preInput);
         FileOutputFormat.setOutputPath(preprocessJob, preOutput);
@@ -223,21 +297,43 @@ public class InputPreprocessor {
             System.exit(preResult);
         }
 
-        Long n = preprocessJob.getCounters().findCounter("N", "N").getValue();
+        Long n = preprocessJob.getCounters().findCounter(IndexCounters.DOCUMENTS).getValue();
         conf.set("N", n.toString());
 
+        /** convert the postings into the memory mapped index read by VectorSpaceRetrievalSystem, a term at a time **/
+        ArrayList<Path> parts = new ArrayList<Path>();
+        for(FileStatus part : fs.listStatus(preOutput)) {
+            if(part.getPath().getName().startsWith("part-"))
+                parts.add(part.getPath());
+        }
+        PostingIndexWriter.write(new PostingIndexWriter.SequenceFileSource(conf, parts), n.intValue(), fs.create(indexOutput, true));
+
         Job weightJob = Job.getInstance(conf, "Aggregate Weights");
         weightJob.setJarByClass(VectorSpaceRetrievalSystem.class);
+        weightJob.setInputFormatClass(SequenceFileInputFormat.class);
         weightJob.setMapperClass(PostingTokenizerMapper.class);
         weightJob.setReducerClass(WeightAggregatorReducer.class);
+        weightJob.setMapOutputKeyClass(IntWritable.class);
+        weightJob.setMapOutputValueClass(TermWeightWritable.class);
         weightJob.setOutputKeyClass(IntWritable.class);
-        weightJob.setOutputValueClass(DoubleWritable.class);
+        weightJob.setOutputValueClass(BytesWritable.class);
+        weightJob.setOutputFormatClass(SequenceFileOutputFormat.class);
+        weightJob.addCacheFile(URI.create(fs.makeQualified(indexOutput).toUri() + "#" + INDEX_CACHE_NAME));
 
-        FileInputFormat.addInputPath(weightJob, preOutput);
+        FileInputFormat.addInputPath(weightJob, new Path(preOutput, "part-*")); //skip the index written next to the postings
         FileOutputFormat.setOutputPath(weightJob, postOutput);
 
         int postResult = weightJob.waitForCompletion(true) ? 0 : 1;
 
+        if(postResult == 0) {
+            DocumentVectorWriter vectorWriter = new DocumentVectorWriter(vectorsOutput);
+            for(FileStatus part : fs.listStatus(postOutput)) {
+                if(part.getPath().getName().startsWith("part-"))
+                    vectorWriter.addSequenceFile(conf, part.getPath());
+            }
+            vectorWriter.close();
+        }
+
         System.exit(postResult);
     }
 }
@@ -0,0 +1,250 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+
+/**
+ * Builds index.bin and vectors.bin in a single JVM, without the Hadoop jobs, for collections that fit on one machine.
+ *
+ * The input (plain, or compressed with any codec Hadoop knows by extension) is read in blocks of
+ * whole <DOC> ... </DOC> documents, split the way SGMLDocumentInputFormat splits them, that are
+ * tokenized on a fixed thread pool with InputPreprocessor.postRecord, so documents are
+ * tokenized, stop worded and stemmed exactly as SGMLTokenizerMapper does it. Each worker thread
+ * posts into its own Posting, the partial indexes are merged into one PostingIndexWriter at
+ * the end, and the document vectors are then built from the written index, which already
+ * holds every (docid, tf, maxF) the second Hadoop job would aggregate.
+ */
+public class LocalIndexer {
+
+    private static final int READ_BLOCK = 1 << 22;
+
+    private final StopWordSet stopWords;
+    private final StemCache stems;
+    private final int threads;
+
+    /** every worker's partial index, merged once all blocks are done **/
+    private final List<Posting> partials = Collections.synchronizedList(new ArrayList<Posting>());
+
+    private final ThreadLocal<Posting> postings = new ThreadLocal<Posting>() {
+        protected Posting initialValue() {
+            Posting P = new Posting();
+            partials.add(P);
+            return P;
+        }
+    };
+    /** every worker's InputPreprocessor.IndexCounters, summed by getCounts **/
+    private final List<long[]> counts = Collections.synchronizedList(new ArrayList<long[]>());
+
+    private final ThreadLocal<long[]> threadCounts = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            long[] c = new long[InputPreprocessor.IndexCounters.values().length];
+            counts.add(c);
+            return c;
+        }
+    };
+    private final ThreadLocal<SGMLTokenizer> tokenizers = new ThreadLocal<SGMLTokenizer>() {
+        protected SGMLTokenizer initialValue() { return new SGMLTokenizer(); }
+    };
+
+    public LocalIndexer(StopWordSet stopWords, int threads) {
+        this.stopWords = stopWords;
+        this.stems = new StemCache(InputPreprocessor.DEFAULT_STEM_CACHE_SIZE);
+        this.threads = threads;
+    }
+
+    /**
+     * @param input a collection file or a directory of them
+     */
+    public void index(File input, String indexOutput, String vectorsOutput) throws IOException {
+        build(input).write(indexOutput);
+        writeVectors(indexOutput, vectorsOutput);
+    }
+
+    /**
+     * tokenize the collection and merge the partial indexes, ready to be written
+     */
+    public PostingIndexWriter build(File input) throws IOException {
+        ArrayList<File> files = new ArrayList<File>();
+        if(input.isDirectory()) {
+            File[] listed = input.listFiles();
+            if(listed != null) for(File f : listed) if(f.isFile() && !f.getName().startsWith(".")) files.add(f);
+        } else {
+            files.add(input);
+        }
+
+        /** the caller tokenizes a block itself when the queue is full, which bounds how much input is read ahead **/
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(this.threads, this.threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(2 * this.threads), new ThreadPoolExecutor.CallerRunsPolicy());
+        ArrayList<Future<?>> blocks = new ArrayList<Future<?>>();
+        try {
+            for(File f : files) readBlocks(f, pool, blocks);
+            for(Future<?> block : blocks) block.get();
+        } catch(Exception e) {
+            throw new IOException("Indexing failed.", e);
+        } finally {
+            pool.shutdown();
+        }
+
+        PostingIndexWriter writer = new PostingIndexWriter();
+        synchronized(this.partials) {
+            for(Posting P : this.partials) {
+                for(String term : P.posting.keySet()) {
+                    HashMap<Integer, Integer> docFreqs = P.posting.get(term).getValue();
+                    for(Integer docid : docFreqs.keySet())
+                        writer.add(term, docid, P.getFrequency(docid), docFreqs.get(docid));
+                }
+                P.clear();
+            }
+        }
+        return writer;
+    }
+
+    private void readBlocks(File f, ThreadPoolExecutor pool, List<Future<?>> blocks) throws IOException {
+        CompressionCodec codec = new CompressionCodecFactory(new Configuration()).getCodec(new Path(f.getPath()));
+        InputStream in = codec == null ? new FileInputStream(f) : codec.createInputStream(new FileInputStream(f));
+        try {
+            byte[] buffer = new byte[READ_BLOCK];
+            int length = 0;
+            int read;
+            while((read = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += read;
+                int lastDoc = lastDocumentEnd(buffer, length);
+                if(lastDoc < 0) { //a single document longer than the buffer
+                    if(length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    continue;
+                }
+                final byte[] block = Arrays.copyOf(buffer, lastDoc);
+                blocks.add(pool.submit(new Runnable() {
+                    public void run() { tokenize(block, block.length); }
+                }));
+                System.arraycopy(buffer, lastDoc, buffer, 0, length - lastDoc);
+                length -= lastDoc;
+            }
+            if(length > 0) tokenize(buffer, length); //last document without a </DOC>
+        } finally {
+            in.close();
+        }
+    }
+
+    /** position just after the last </DOC> in buffer[0, length), -1 if there is none **/
+    private static int lastDocumentEnd(byte[] buffer, int length) {
+        byte[] close = SGMLDocumentInputFormat.DOC_CLOSE;
+        for(int i = length - close.length; i >= 0; i--) {
+            int j = 0;
+            while(j < close.length && buffer[i + j] == close[j]) j++;
+            if(j == close.length) return i + close.length;
+        }
+        return -1;
+    }
+
+    /** index every <DOC> ... </DOC> of the block, the way SGMLDocumentInputFormat splits them **/
+    private void tokenize(byte[] block, int length) {
+        Posting P = this.postings.get();
+        SGMLTokenizer tokenizer = this.tokenizers.get();
+        long[] counts = this.threadCounts.get();
+        int start;
+        int from = 0;
+        while((start = SGMLDocumentInputFormat.indexOf(block, from, length, SGMLDocumentInputFormat.DOC_OPEN)) >= 0) {
+            int close = SGMLDocumentInputFormat.indexOf(block, start, length, SGMLDocumentInputFormat.DOC_CLOSE);
+            int end = close < 0 ? length : close + SGMLDocumentInputFormat.DOC_CLOSE.length;
+            InputPreprocessor.postRecord(block, start, end - start, tokenizer, this.stopWords, this.stems, P, counts);
+            from = end;
+        }
+    }
+
+    /**
+     * the InputPreprocessor.IndexCounters the Hadoop job would report, indexed by ordinal, summed over
+     * everything indexed so far (nothing is emitted to a shuffle, so POSTINGS_EMITTED and BYTES_EMITTED stay 0)
+     */
+    public long[] getCounts() {
+        long[] total = new long[InputPreprocessor.IndexCounters.values().length];
+        synchronized(this.counts) {
+            for(long[] c : this.counts)
+                for(int i = 0; i < total.length; i++) total[i] += c[i];
+        }
+        total[InputPreprocessor.IndexCounters.STEM_CACHE_HITS.ordinal()] = this.stems.getHits();
+        total[InputPreprocessor.IndexCounters.STEM_CACHE_MISSES.ordinal()] = this.stems.getMisses();
+        return total;
+    }
+
+    /**
+     * Invert the written index into one vector per document, term ids ascending because
+     * the terms are visited in dictionary order. Fields terms are not part of the vectors.
+     */
+    public static void writeVectors(String indexPath, String vectorsPath) throws IOException {
+        PostingIndex index = PostingIndex.open(indexPath);
+        int maxDocId = index.getMaxDocId();
+
+        boolean[] fieldTerms = new boolean[index.getTermCount()];
+        PostingIndex.Terms terms = index.terms(0);
+        while(terms.next()) fieldTerms[terms.termId()] = Fields.isFieldTerm(terms.bytes(), terms.length());
+
+        int[] starts = new int[maxDocId + 2];
+        for(int t = 0; t < index.getTermCount(); t++) {
+            if(fieldTerms[t]) continue;
+            PostingIndex.Postings p = index.postings(t);
+            while(p.next()) starts[p.docid() + 1]++;
+        }
+        for(int d = 0; d <= maxDocId; d++) starts[d + 1] += starts[d];
+
+        long[] packed = new long[starts[maxDocId + 1]];
+        double[] lengths = new double[maxDocId + 1];
+        int[] fill = Arrays.copyOf(starts, maxDocId + 1);
+        for(int t = 0; t < index.getTermCount(); t++) {
+            if(fieldTerms[t]) continue;
+            double idf = index.idf(t);
+            PostingIndex.Postings p = index.postings(t);
+            while(p.next()) {
+                int d = p.docid();
+                packed[fill[d]++] = ((long) t << 32) | (Float.floatToIntBits(p.weight()) & 0xFFFFFFFFL);
+                lengths[d] += Math.pow(Weighting.weight(p.tf(), p.maxF(), idf), 2);
+            }
+        }
+
+        DocumentVectorWriter writer = new DocumentVectorWriter(vectorsPath);
+        long[] vector = new long[256];
+        for(int d = 0; d <= maxDocId; d++) {
+            int n = starts[d + 1] - starts[d];
+            if(n == 0) continue;
+            if(n > vector.length) vector = new long[Math.max(n, vector.length * 2)];
+            System.arraycopy(packed, starts[d], vector, 0, n);
+            byte[] record = DocumentVectorWriter.encode(lengths[d], vector, n);
+            writer.add(d, record, record.length);
+        }
+        writer.close();
+    }
+
+    /**
+     * usage: LocalIndexer [-threads n] stopwords input index.bin vectors.bin
+     */
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ArrayList<String> paths = new ArrayList<String>();
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-threads") && i + 1 < args.length) threads = Integer.parseInt(args[++i]);
+            else paths.add(args[i]);
+        }
+        if(paths.size() != 4) {
+            System.err.println("usage: LocalIndexer [-threads n] stopwords input index.bin vectors.bin");
+            System.exit(1);
+        }
+        long start = System.currentTimeMillis();
+        LocalIndexer indexer = new LocalIndexer(StopWordSet.load(paths.get(0)), threads);
+        indexer.index(new File(paths.get(1)), paths.get(2), paths.get(3));
+        System.err.println("Indexed in " + (System.currentTimeMillis() - start) + " ms");
+        long[] counts = indexer.getCounts();
+        for(InputPreprocessor.IndexCounters counter : InputPreprocessor.IndexCounters.values())
+            System.err.println("\t" + counter + "=" + counts[counter.ordinal()]);
+    }
+}
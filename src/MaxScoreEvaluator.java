@@ -0,0 +1,115 @@
+/**
+ * Document-at-a-time cosine scoring with MaxScore dynamic pruning (Turtle and Flood, 1995).
+ *
+ * Every query term has an upper bound on what it can add to a document's score:
+ * query weight * PostingIndex.maxScore / |q|. Terms are ordered by that bound, and once the
+ * top k threshold is larger than the summed bounds of the weakest terms, those terms are
+ * "non-essential": a document that only matches them can't make the top k, so candidates
+ * are only taken from the essential lists and the non-essential lists are just probed with
+ * advance() for documents that still might make it. Before any of them is probed, the per block
+ * bounds in the skip tables (PostingIndex.Postings.blockMaxScore) give a tighter bound for the
+ * candidate, so a candidate that can't make it is dropped without decoding a single block.
+ *
+ * The scores are the same tf * idf cosine as the term-at-a-time loop in VectorSpaceRetrievalSystem.
+ */
+public class MaxScoreEvaluator {
+
+    private static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    private final PostingIndex index;
+    private final DocumentVectors vectors;
+
+    public MaxScoreEvaluator(PostingIndex index, DocumentVectors vectors) {
+        this.index = index;
+        this.vectors = vectors;
+    }
+
+    /**
+     * @param termIds the n query terms
+     * @param queryWeights weight of each query term, already multiplied by its number of occurrences
+     * @param queryLength squared length of the query vector
+     * @return number of postings read, each next() or advance() of a posting list
+     */
+    public long evaluate(int[] termIds, double[] queryWeights, int n, double queryLength, TopK top) {
+
+        PostingIndex.Postings[] cursors = new PostingIndex.Postings[n];
+        double[] weights = new double[n];
+        double[] bounds = new double[n];
+        int[] docs = new int[n];
+        double queryNorm = Math.sqrt(queryLength);
+        long postings = 0;
+
+        /** insertion sort by bound, queries are short **/
+        for(int i = 0; i < n; i++) {
+            double bound = queryWeights[i] * this.index.maxScore(termIds[i]) / queryNorm;
+            int j = i;
+            while(j > 0 && bounds[j - 1] > bound) {
+                cursors[j] = cursors[j - 1];
+                weights[j] = weights[j - 1];
+                bounds[j] = bounds[j - 1];
+                j--;
+            }
+            cursors[j] = this.index.postings(termIds[i]);
+            weights[j] = queryWeights[i];
+            bounds[j] = bound;
+        }
+
+        /** bounds[i] becomes the summed bound of lists 0..i **/
+        for(int i = 0; i < n; i++) {
+            if(i > 0) bounds[i] += bounds[i - 1];
+            docs[i] = cursors[i].next() ? cursors[i].docid() : NO_MORE_DOCS;
+            postings++;
+        }
+
+        double threshold = top.threshold();
+        int essential = 0; //lists before this one are non-essential
+        while(essential < n && bounds[essential] < threshold) essential++;
+
+        while(essential < n) {
+            int doc = NO_MORE_DOCS;
+            for(int i = essential; i < n; i++)
+                if(docs[i] < doc) doc = docs[i];
+            if(doc == NO_MORE_DOCS) break;
+
+            double dot = 0.0;
+            for(int i = essential; i < n; i++) {
+                if(docs[i] == doc) {
+                    dot += weights[i] * cursors[i].weight();
+                    docs[i] = cursors[i].next() ? cursors[i].docid() : NO_MORE_DOCS;
+                    postings++;
+                }
+            }
+
+            double norm = Math.sqrt(queryLength * this.vectors.length(doc));
+
+            /** block-max check: bound each non-essential list by the block holding doc, from the skip tables alone **/
+            if(essential > 0) {
+                double bound = dot / norm;
+                for(int i = 0; i < essential; i++)
+                    if(docs[i] <= doc) bound += weights[i] * cursors[i].blockMaxScore(doc) / queryNorm;
+                if(bound < threshold) continue;
+            }
+
+            boolean pruned = false;
+            for(int i = essential - 1; i >= 0; i--) {
+                if(dot / norm + bounds[i] < threshold) {
+                    pruned = true;
+                    break;
+                }
+                if(docs[i] < doc) {
+                    docs[i] = cursors[i].advance(doc) ? cursors[i].docid() : NO_MORE_DOCS;
+                    postings++;
+                }
+                if(docs[i] == doc) dot += weights[i] * cursors[i].weight();
+            }
+            if(pruned) continue;
+
+            top.offer(doc, dot / norm);
+            if(top.threshold() > threshold) {
+                threshold = top.threshold();
+                while(essential < n && bounds[essential] < threshold) essential++;
+            }
+        }
+        return postings;
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named counters, gauges and Histograms of a running searcher, created on first use and
+ * listed in name order. Everything can be updated from any thread.
+ *
+ * toText() is one "name value" line per number (a histogram as name.count, name.p50, ...),
+ * toJson() the same numbers as one JSON object with "counters", "gauges" and "histograms".
+ */
+public class Metrics {
+
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    /** a value read when the metrics are written, e.g. a cache hit rate **/
+    public interface Gauge {
+        double value();
+    }
+
+    private final ConcurrentSkipListMap<String, LongAdder> counters = new ConcurrentSkipListMap<String, LongAdder>();
+    private final ConcurrentSkipListMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+    private final ConcurrentSkipListMap<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+
+    public LongAdder counter(String name) {
+        LongAdder counter = this.counters.get(name);
+        if(counter == null) {
+            LongAdder created = new LongAdder();
+            counter = this.counters.putIfAbsent(name, created);
+            if(counter == null) counter = created;
+        }
+        return counter;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = this.histograms.get(name);
+        if(histogram == null) {
+            Histogram created = new Histogram();
+            histogram = this.histograms.putIfAbsent(name, created);
+            if(histogram == null) histogram = created;
+        }
+        return histogram;
+    }
+
+    public void gauge(String name, Gauge gauge) { this.gauges.put(name, gauge); }
+
+    /** a gauge that never changes, e.g. how long the index took to load **/
+    public void gauge(String name, final double value) {
+        gauge(name, new Gauge() {
+            public double value() { return value; }
+        });
+    }
+
+    public String toText() {
+        StringBuilder out = new StringBuilder();
+        for(Map.Entry<String, LongAdder> e : this.counters.entrySet())
+            out.append(e.getKey()).append(' ').append(e.getValue().sum()).append('\n');
+        for(Map.Entry<String, Gauge> e : this.gauges.entrySet())
+            out.append(e.getKey()).append(' ').append(number(e.getValue().value())).append('\n');
+        for(Map.Entry<String, Histogram> e : this.histograms.entrySet()) {
+            Histogram h = e.getValue();
+            String name = e.getKey();
+            out.append(name).append(".count ").append(h.getCount()).append('\n');
+            out.append(name).append(".min ").append(h.getMin()).append('\n');
+            out.append(name).append(".mean ").append(number(h.getMean())).append('\n');
+            for(int p = 0; p < PERCENTILES.length; p++)
+                out.append(name).append('.').append(PERCENTILE_NAMES[p]).append(' ').append(h.percentile(PERCENTILES[p])).append('\n');
+            out.append(name).append(".max ").append(h.getMax()).append('\n');
+        }
+        return out.toString();
+    }
+
+    public String toJson() {
+        StringBuilder out = new StringBuilder("{\"counters\":{");
+        String separator = "";
+        for(Map.Entry<String, LongAdder> e : this.counters.entrySet()) {
+            out.append(separator).append(quote(e.getKey())).append(':').append(e.getValue().sum());
+            separator = ",";
+        }
+        out.append("},\"gauges\":{");
+        separator = "";
+        for(Map.Entry<String, Gauge> e : this.gauges.entrySet()) {
+            double value = e.getValue().value();
+            out.append(separator).append(quote(e.getKey())).append(':')
+                    .append(Double.isNaN(value) || Double.isInfinite(value) ? "null" : number(value));
+            separator = ",";
+        }
+        out.append("},\"histograms\":{");
+        separator = "";
+        for(Map.Entry<String, Histogram> e : this.histograms.entrySet()) {
+            Histogram h = e.getValue();
+            out.append(separator).append(quote(e.getKey())).append(":{\"count\":").append(h.getCount())
+                    .append(",\"min\":").append(h.getMin())
+                    .append(",\"mean\":").append(number(h.getMean()));
+            for(int p = 0; p < PERCENTILES.length; p++)
+                out.append(",\"").append(PERCENTILE_NAMES[p]).append("\":").append(h.percentile(PERCENTILES[p]));
+            out.append(",\"max\":").append(h.getMax()).append('}');
+            separator = ",";
+        }
+        return out.append("}}").toString();
+    }
+
+    /** write toJson() to a file, "-" for stdout **/
+    public void write(String path) throws IOException {
+        if(path.equals("-")) {
+            System.out.println(toJson());
+            return;
+        }
+        Writer out = new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8);
+        try {
+            out.write(toJson());
+            out.write('\n');
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String number(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /** metric names are plain ASCII, only quotes and backslashes need escaping **/
+    private static String quote(String name) {
+        return "\"" + name.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
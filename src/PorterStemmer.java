@@ -88,6 +88,23 @@ class Stemmer
         for (int c = 0; c < wLen; c++) b[i++] = w[c];
     }
 
+    /** Adds wLen characters starting at w[offset], like add(char[] w, int wLen). */
+
+    public void add(char[] w, int offset, int wLen)
+    {  if (i+wLen >= b.length)
+    {  char[] new_b = new char[i+wLen+INC];
+        for (int c = 0; c < i; c++) new_b[c] = b[c];
+        b = new_b;
+    }
+        for (int c = 0; c < wLen; c++) b[i++] = w[offset+c];
+    }
+
+    /**
+     * Drops any characters added since the last stem(), so one Stemmer can be
+     * reused for every word (stem() itself also leaves the Stemmer ready for the next word).
+     */
+    public void reset() { i = 0; i_end = 0; }
+
     /**
      * After a word has been stemmed, it can be retrieved by toString(),
      * or a reference to the internal buffer can be retrieved by getResultBuffer
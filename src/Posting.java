@@ -20,10 +20,21 @@ public class Posting {
     public HashMap<Integer, Double> weights;
     public HashMap<String, Pair<Integer, HashMap<Integer, Integer>>> posting;
     private HashMap<Integer, Integer> maxFrequencies;
+    private int entries; //number of (term, docid) pairs
 
     public Posting() {
         this.maxFrequencies = new HashMap<Integer, Integer>();
         this.posting = new HashMap<String, Pair<Integer, HashMap<Integer, Integer>>>();
+        this.entries = 0;
+    }
+
+    /** number of (term, docid) pairs posted since the last clear **/
+    public int size() { return this.entries; }
+
+    public void clear() {
+        this.maxFrequencies.clear();
+        this.posting.clear();
+        this.entries = 0;
     }
 
     public Double getIDF(String term) { return this.inverseDocumentFrequencies.get(term); }
@@ -35,7 +46,7 @@ public class Posting {
         this.inverseDocumentFrequencies = new HashMap<String, Double>();
         for(String term : posting.keySet()) {
             Integer df = this.posting.get(term).getKey();
-            this.inverseDocumentFrequencies.put(term, Math.log(df) / Math.log(2));
+            this.inverseDocumentFrequencies.put(term, Weighting.idf(this.N, df));
         }
     }
 
@@ -60,20 +71,23 @@ public class Posting {
             if (this.posting.get(term).getValue().containsKey(docid)) { //check there is a term freq for current document
                 int oldVal = this.posting.get(term).getValue().get(docid);
                 this.posting.get(term).getValue().put(docid, oldVal + 1);
-                if(this.maxFrequencies.containsKey(docid))
-                    if(this.maxFrequencies.get(docid) < oldVal + 1)
-                        this.maxFrequencies.put(docid, oldVal + 1);
-                else
-                    this.maxFrequencies.put(docid, 1);
+                Integer maxF = this.maxFrequencies.get(docid);
+                if(maxF == null || maxF < oldVal + 1)
+                    this.maxFrequencies.put(docid, oldVal + 1);
 
             } else { //increment document freqeuncy and add key/val pair <docid, 1>
+                this.entries++;
                 Pair<Integer, HashMap<Integer, Integer>> old = this.posting.get(term);
                 Integer numDocs = old.getKey() + 1;
                 HashMap<Integer, Integer> newMap = this.posting.get(term).getValue();
                 newMap.put(docid, 1);
                 this.posting.put(term, new Pair<Integer, HashMap<Integer, Integer>>(numDocs, newMap));
+                if(!this.maxFrequencies.containsKey(docid)) {
+                    this.maxFrequencies.put(docid, 1);
+                }
             }
         } else {
+            this.entries++;
             HashMap<Integer, Integer> newMap = new HashMap<Integer, Integer>();
             newMap.put(docid, 1);
             this.posting.put(term, new Pair<Integer, HashMap<Integer, Integer>>(1, newMap));
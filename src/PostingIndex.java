@@ -0,0 +1,433 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Read side of the binary index written by PostingIndexWriter.
+ * The whole file is memory mapped, nothing is parsed up front, so opening an index
+ * costs the same no matter how large the collection is, and the term dictionary
+ * lives off heap in the front coded blocks it was written as.
+ *
+ * All reads use absolute offsets into the mapped buffer so one PostingIndex
+ * can be shared between threads.
+ */
+public class PostingIndex {
+
+    public static final int MAGIC = 0x56535249; //"VSRI"
+    public static final int VERSION = 6;
+    public static final int BLOCK_SIZE = 128;
+    public static final int SKIP_SIZE = 4 + 4 + 4;
+    public static final int HEADER_SIZE = 6 * 4;
+    public static final int TERMS_PER_BLOCK = 16;
+    public static final int STATS_SIZE = 4 + 8 + 4 + 8;
+
+    private final MappedByteBuffer buffer;
+    private final int termCount;
+    private final int N;
+    private final int maxDocId;
+    private final int termBlockCount;
+    private final int stats; //start of the per term stats table
+    private volatile TinyLfuCache<Integer, Decoded> cache; //decoded postings of hot terms, null for none
+
+    /** weight of a cached list, 4 arrays of df values plus object headers **/
+    private static final int DECODED_POSTING_BYTES = 16;
+    private static final int DECODED_OVERHEAD = 128;
+
+    private PostingIndex(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if(buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a posting index file.");
+        if(buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported posting index version: " + buffer.getInt(4));
+        this.termCount = buffer.getInt(8);
+        this.N = buffer.getInt(12);
+        this.maxDocId = buffer.getInt(16);
+        this.termBlockCount = buffer.getInt(20);
+        this.stats = HEADER_SIZE + 4 * this.termBlockCount;
+    }
+
+    public static PostingIndex open(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if(channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Posting index larger than 2GB: " + path);
+            return new PostingIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            file.close(); //the mapping stays valid after the channel is closed
+        }
+    }
+
+    public int getTermCount() { return this.termCount; }
+    public int getN() { return this.N; }
+    public int getMaxDocId() { return this.maxDocId; }
+
+    /**
+     * @return the term ordinal or -1 if the term is not in the index
+     */
+    public int find(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        Terms terms = new Terms();
+        int t = ceiling(key, terms);
+        return t < this.termCount && terms.compareTo(key) == 0 ? t : -1;
+    }
+
+    /**
+     * @return the ordinal of the first term >= term, getTermCount() if there is none
+     */
+    public int ceiling(String term) {
+        return ceiling(term.getBytes(StandardCharsets.UTF_8), new Terms());
+    }
+
+    /**
+     * @return [first, end) ordinals of the terms starting with prefix
+     */
+    public int[] prefixRange(String prefix) {
+        byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        Terms terms = new Terms();
+        int from = ceiling(key, terms);
+        int to = from;
+        if(to < this.termCount && terms.startsWith(key)) {
+            while(terms.next() && terms.startsWith(key)) { }
+            to = terms.termId();
+        }
+        return new int[]{from, to};
+    }
+
+    /**
+     * @return [first, end) ordinals of the terms t with from <= t < to
+     */
+    public int[] range(String from, String to) {
+        int first = ceiling(from);
+        return new int[]{first, Math.max(first, ceiling(to))};
+    }
+
+    /**
+     * Binary search the first term of each dictionary block, comparing raw UTF-8 bytes so no
+     * terms are decoded, then scan the one block that can hold key.
+     * Leaves terms positioned on the result.
+     */
+    private int ceiling(byte[] key, Terms terms) {
+        if(this.termCount == 0) return 0;
+        int lo = 0, hi = this.termBlockCount - 1;
+        int block = 0;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(compareFirst(mid, key) <= 0) {
+                block = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        terms.seekBlock(block);
+        while(terms.next()) {
+            if(terms.compareTo(key) >= 0) return terms.termId();
+            if((terms.termId() + 1) % TERMS_PER_BLOCK == 0) break; //the next block starts above key
+        }
+        int t = Math.min((block + 1) * TERMS_PER_BLOCK, this.termCount);
+        if(t < this.termCount) terms.next();
+        return t;
+    }
+
+    public String term(int t) {
+        Terms terms = new Terms();
+        terms.seek(t);
+        return terms.term();
+    }
+
+    /** cursor over the dictionary in term order starting at ordinal t, call next() first **/
+    public Terms terms(int t) {
+        Terms terms = new Terms();
+        if(t > 0) terms.seek(Math.min(t, this.termCount) - 1);
+        return terms;
+    }
+
+    public int df(int t) {
+        return this.buffer.getInt(stats(t));
+    }
+
+    /** idf computed at index time with Weighting.idf **/
+    public double idf(int t) {
+        return this.buffer.getDouble(stats(t) + 4);
+    }
+
+    /** largest weight / |d| in the term's postings, see PostingIndexWriter **/
+    public float maxScore(int t) {
+        return this.buffer.getFloat(stats(t) + 4 + 8);
+    }
+
+    public Postings postings(int t) {
+        int stats = stats(t);
+        int df = this.buffer.getInt(stats);
+        int offset = (int) this.buffer.getLong(stats + 4 + 8 + 4);
+        TinyLfuCache<Integer, Decoded> cache = this.cache;
+        if(cache == null || df < BLOCK_SIZE) return new Postings(offset, df, null); //a single block is as quick to decode as to look up
+        Decoded decoded = cache.get(t);
+        long bytes = (long) DECODED_POSTING_BYTES * df + DECODED_OVERHEAD;
+        if(decoded == null && cache.admits(t, bytes)) {
+            decoded = new Decoded(new Postings(offset, df, null), df);
+            cache.put(t, decoded, bytes);
+        }
+        return new Postings(offset, df, decoded);
+    }
+
+    /**
+     * Keep the fully decoded postings of often searched terms, at most maxBytes of them at
+     * 16 bytes a posting, so a hot list isn't vbyte decoded again for every query that uses it.
+     * Lists shorter than a block are never cached. 0 turns the cache off.
+     */
+    public void setPostingCache(long maxBytes) {
+        this.cache = maxBytes <= 0 ? null
+                : new TinyLfuCache<Integer, Decoded>(maxBytes, (int) Math.min(this.termCount, maxBytes / (DECODED_POSTING_BYTES * BLOCK_SIZE) + 1));
+    }
+
+    /** null if there is none **/
+    public TinyLfuCache<Integer, Decoded> getPostingCache() { return this.cache; }
+
+    /** position of the df, idf, max score, postings offset of term t **/
+    private int stats(int t) { return this.stats + STATS_SIZE * t; }
+
+    private int termBlock(int b) { return this.buffer.getInt(HEADER_SIZE + 4 * b); }
+
+    /** compare the first (fully stored) term of block b with key **/
+    private int compareFirst(int b, byte[] key) {
+        int[] position = { termBlock(b) };
+        int length = VByte.read(this.buffer, position);
+        int p = position[0];
+        int n = Math.min(length, key.length);
+        for(int i = 0; i < n; i++) {
+            int c = (this.buffer.get(p + i) & 0xFF) - (key[i] & 0xFF);
+            if(c != 0) return c;
+        }
+        return length - key.length;
+    }
+
+    /** unsigned lexicographic order of UTF-8 bytes, the order the dictionary is written in **/
+    public static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for(int i = 0; i < n; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if(c != 0) return c;
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Cursor decoding the front coded dictionary one term at a time into a reusable buffer.
+     * Each block of TERMS_PER_BLOCK terms starts with a complete term (vint length, bytes),
+     * every other term is stored as (vint shared prefix length, vint suffix length, suffix bytes).
+     */
+    public class Terms {
+
+        private byte[] bytes = new byte[32];
+        private int length;
+        private int termId; //termCount once exhausted
+        private final int[] position = new int[1]; //next entry to decode
+
+        private Terms() {
+            this.termId = -1;
+            this.position[0] = termBlockCount > 0 ? termBlock(0) : 0;
+        }
+
+        /** position before the first term of block b **/
+        private void seekBlock(int b) {
+            this.termId = b * TERMS_PER_BLOCK - 1;
+            this.position[0] = termBlock(b);
+            this.length = 0;
+        }
+
+        /** position on term t **/
+        private void seek(int t) {
+            seekBlock(t / TERMS_PER_BLOCK);
+            while(this.termId < t) next();
+        }
+
+        /** blocks are written back to back, so decoding simply runs on into the next block **/
+        public boolean next() {
+            if(this.termId + 1 >= termCount) {
+                this.termId = termCount;
+                return false;
+            }
+            int shared = (this.termId + 1) % TERMS_PER_BLOCK == 0 ? 0 : VByte.read(buffer, this.position);
+            int suffix = VByte.read(buffer, this.position);
+            this.length = shared + suffix;
+            if(this.length > this.bytes.length) this.bytes = Arrays.copyOf(this.bytes, Math.max(this.length, 2 * this.bytes.length));
+            for(int i = 0; i < suffix; i++) this.bytes[shared + i] = buffer.get(this.position[0]++);
+            this.termId++;
+            return true;
+        }
+
+        /** ordinal of the current term, getTermCount() once the dictionary is exhausted **/
+        public int termId() { return this.termId; }
+
+        public String term() { return new String(this.bytes, 0, this.length, StandardCharsets.UTF_8); }
+
+        /** UTF-8 bytes of the current term, valid until the next call to next() **/
+        public byte[] bytes() { return this.bytes; }
+        public int length() { return this.length; }
+
+        /** order of the current terms of two cursors, possibly over different indexes **/
+        public int compareTo(Terms other) {
+            int n = Math.min(this.length, other.length);
+            for(int i = 0; i < n; i++) {
+                int c = (this.bytes[i] & 0xFF) - (other.bytes[i] & 0xFF);
+                if(c != 0) return c;
+            }
+            return this.length - other.length;
+        }
+
+        public int compareTo(byte[] key) {
+            int n = Math.min(this.length, key.length);
+            for(int i = 0; i < n; i++) {
+                int c = (this.bytes[i] & 0xFF) - (key[i] & 0xFF);
+                if(c != 0) return c;
+            }
+            return this.length - key.length;
+        }
+
+        public boolean startsWith(byte[] prefix) {
+            if(this.length < prefix.length) return false;
+            for(int i = 0; i < prefix.length; i++)
+                if(this.bytes[i] != prefix[i]) return false;
+            return true;
+        }
+    }
+
+    /**
+     * Cursor over one term's postings in docid order, each (docid, maxF, tf, weight)
+     * where weight is the precomputed tf * idf of the term in the document.
+     * Postings are decoded a block at a time into reusable arrays (or read from the Decoded list
+     * when the term is in the posting cache), and advance() uses the skip table to jump straight
+     * to the block that can hold its target.
+     * Call next() before reading the first posting.
+     */
+    public class Postings {
+
+        private final int df;
+        private final int skips; //skip table, one SKIP_SIZE entry per block
+        private final int blocks; //start of the first block
+        private final int blockCount;
+        private int block; //index of the decoded block
+        private final boolean cached;
+        private final int[] docids;
+        private final int[] tfs;
+        private final int[] maxFs;
+        private final float[] weights;
+        private int base; //of the current block in the arrays, 0 unless they hold the whole cached list
+        private int blockLength;
+        private int current;
+
+        /**
+         * @param decoded the whole list already decoded, or null to decode blocks from the mapped file
+         */
+        private Postings(int offset, int df, Decoded decoded) {
+            this.df = df;
+            this.blockCount = (df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            this.skips = offset;
+            this.blocks = offset + SKIP_SIZE * this.blockCount;
+            this.block = -1;
+            this.blockLength = 0;
+            this.current = -1;
+            this.cached = decoded != null;
+            this.docids = this.cached ? decoded.docids : new int[BLOCK_SIZE];
+            this.tfs = this.cached ? decoded.tfs : new int[BLOCK_SIZE];
+            this.maxFs = this.cached ? decoded.maxFs : new int[BLOCK_SIZE];
+            this.weights = this.cached ? decoded.weights : new float[BLOCK_SIZE];
+        }
+
+        public boolean next() {
+            if(++this.current < this.blockLength) return true;
+            if(this.block + 1 >= this.blockCount) {
+                this.current = this.blockLength;
+                return false;
+            }
+            decodeBlock(this.block + 1);
+            return true;
+        }
+
+        /**
+         * Move to the first posting with a docid of at least target, staying put if the
+         * current posting already qualifies. Blocks that end before target are never decoded.
+         * @return false once the list is exhausted
+         */
+        public boolean advance(int target) {
+            if(this.current >= 0 && this.current < this.blockLength && docid() >= target) return true;
+            if(this.block == this.blockCount - 1 && this.current >= this.blockLength) return false; //exhausted
+            int b = Math.max(this.block, 0);
+            while(b < this.blockCount && lastDocid(b) < target) b++;
+            if(b == this.blockCount) {
+                this.block = this.blockCount - 1;
+                this.current = this.blockLength = 0;
+                return false;
+            }
+            if(b != this.block) decodeBlock(b);
+            else if(this.current < 0) this.current = 0;
+            while(this.docids[this.base + this.current] < target) this.current++; //the block's last docid is >= target
+            return true;
+        }
+
+        /**
+         * Bound on weight / |d| over the block advance(target) would move to, read from the skip
+         * table without decoding anything. 0 when no docid of the list is at least target.
+         */
+        public float blockMaxScore(int target) {
+            int b = Math.max(this.block, 0);
+            while(b < this.blockCount && lastDocid(b) < target) b++;
+            return b == this.blockCount ? 0.0f : buffer.getFloat(this.skips + SKIP_SIZE * b + 8);
+        }
+
+        private int lastDocid(int b) { return buffer.getInt(this.skips + SKIP_SIZE * b); }
+
+        private void decodeBlock(int b) {
+            int n = b == this.blockCount - 1 ? this.df - BLOCK_SIZE * b : BLOCK_SIZE;
+            if(this.cached) {
+                this.base = BLOCK_SIZE * b;
+                this.block = b;
+                this.blockLength = n;
+                this.current = 0;
+                return;
+            }
+            int p = this.blocks + buffer.getInt(this.skips + SKIP_SIZE * b + 4);
+            p = VByte.read(buffer, p, this.docids, 0, n);
+            int docid = b > 0 ? lastDocid(b - 1) : 0;
+            for(int i = 0; i < n; i++) this.docids[i] = docid += this.docids[i];
+            p = VByte.read(buffer, p, this.tfs, 0, n);
+            p = VByte.read(buffer, p, this.maxFs, 0, n);
+            for(int i = 0; i < n; i++, p += 4) this.weights[i] = buffer.getFloat(p);
+            this.block = b;
+            this.blockLength = n;
+            this.current = 0;
+        }
+
+        public int docid() { return this.docids[this.base + this.current]; }
+        public int maxF() { return this.maxFs[this.base + this.current]; }
+        public int tf() { return this.tfs[this.base + this.current]; }
+        public float weight() { return this.weights[this.base + this.current]; }
+    }
+
+    /** one term's whole posting list decoded, shared read only by every cursor over it **/
+    public static class Decoded {
+
+        private final int[] docids;
+        private final int[] tfs;
+        private final int[] maxFs;
+        private final float[] weights;
+
+        private Decoded(Postings p, int df) {
+            this.docids = new int[df];
+            this.tfs = new int[df];
+            this.maxFs = new int[df];
+            this.weights = new float[df];
+            for(int i = 0; p.next(); i++) {
+                this.docids[i] = p.docid();
+                this.tfs[i] = p.tf();
+                this.maxFs[i] = p.maxF();
+                this.weights[i] = p.weight();
+            }
+        }
+    }
+}
@@ -0,0 +1,385 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+
+/**
+ * Builds the binary index read by PostingIndex, usually by streaming the (term, posting)
+ * records written by RawInputReducer through a SequenceFileSource. Older text posting files
+ * (term \t df docid1 maxF1 tf1 ... docidn maxFn tfn) can still be converted with main.
+ *
+ * File layout, all values big endian:
+ *   header      magic, version, term count, N, max docid, dictionary block count
+ *   block table one int per dictionary block, the file offset of the block
+ *   stats       per term ordinal: int df, double idf, float max score, long postings offset
+ *   dictionary  the terms sorted by UTF-8 bytes, front coded in blocks of PostingIndex.TERMS_PER_BLOCK:
+ *               the first term of a block as vint length and bytes, the others as vint length of the
+ *               prefix shared with the previous term, vint suffix length and the suffix bytes
+ *   postings    per term, sorted by docid, in blocks of PostingIndex.BLOCK_SIZE postings:
+ *               a skip table with one (int last docid, int block offset, float block max score)
+ *               entry per block, then the blocks, each holding vbyte docid gaps, vbyte tfs,
+ *               vbyte maxFs and one float weight per posting
+ *               (the first gap of a block is relative to the last docid of the previous block)
+ *
+ * idf and the tf * idf weight of each posting are computed here with Weighting, once,
+ * so the searcher only has to do a multiply-add per posting. The max score of a term is the
+ * largest weight / |d| in its list, the most the term can add to a cosine score per unit of
+ * query weight, which MaxScoreEvaluator uses to skip documents that can't make the top k.
+ * The block max score is the same bound over a single block.
+ */
+public class PostingIndexWriter {
+
+    private HashMap<String, ArrayList<int[]>> postings;
+    private HashSet<Integer> documents;
+
+    public PostingIndexWriter() {
+        this.postings = new HashMap<String, ArrayList<int[]>>();
+        this.documents = new HashSet<Integer>();
+    }
+
+    /**
+     * Terms in PostingIndex.compare order, each with its postings ({docid, maxF, tf}) sorted by docid.
+     * write reads a source through twice, so only one term's postings need to be held at a time.
+     */
+    public interface Source {
+        /** go back before the first term **/
+        void reset() throws IOException;
+        /** move to the next term, false once there are none left **/
+        boolean next() throws IOException;
+        /** UTF-8 bytes of the current term **/
+        byte[] term();
+        /** postings of the current term, valid until the next call to next() **/
+        List<int[]> postings();
+        void close() throws IOException;
+    }
+
+    public void add(String term, int docid, int maxF, int tf) {
+        ArrayList<int[]> list = this.postings.get(term);
+        if(list == null) {
+            list = new ArrayList<int[]>();
+            this.postings.put(term, list);
+        }
+        list.add(new int[]{docid, maxF, tf});
+        this.documents.add(docid);
+    }
+
+    /** docids of every document added so far **/
+    public Set<Integer> getDocuments() { return this.documents; }
+
+    /**
+     * read text postings, one term per line
+     */
+    public void addTextPostings(BufferedReader reader) throws IOException {
+        String line;
+        while((line = reader.readLine()) != null) {
+            StringTokenizer st = new StringTokenizer(line, "\t ");
+            if(!st.hasMoreTokens()) continue;
+            String term = st.nextToken();
+            st.nextToken(); //df is recomputed from the postings themselves
+            while(st.hasMoreTokens()) {
+                int docid = Integer.parseInt(st.nextToken());
+                int maxF = Integer.parseInt(st.nextToken());
+                int tf = Integer.parseInt(st.nextToken());
+                add(term, docid, maxF, tf);
+            }
+        }
+    }
+
+    public void write(String output) throws IOException {
+        write(new FileOutputStream(output));
+    }
+
+    /**
+     * write the postings added so far to stream and close it
+     */
+    public void write(OutputStream stream) throws IOException {
+        write(source(), this.documents.size(), stream);
+    }
+
+    /** the postings added so far, sorted, for write(Source, int, OutputStream) **/
+    public Source source() { return new MemorySource(this.postings); }
+
+    /**
+     * Write the index of the terms in source to stream and close both, e.g. a FileSystem.create
+     * stream so the index can be shipped to tasks through the distributed cache.
+     * N is the number of documents with at least one posting.
+     *
+     * The first pass over source builds the dictionary and the squared document vector lengths,
+     * the second encodes each term's postings into a temporary file (the stats come before the
+     * postings in the index but depend on them), which is then copied in behind the dictionary.
+     * Memory is the dictionary, the lengths, the stats and one term's postings.
+     */
+    public static void write(Source source, int N, OutputStream stream) throws IOException {
+        File temporary = File.createTempFile("postings", ".tmp");
+        try {
+
+            /** pass 1: dictionary, squared document vector lengths (the same sums WeightAggregatorReducer writes, without the Fields terms) **/
+            int termCount = 0;
+            int maxDocId = 0;
+            double[] lengths = new double[1024];
+            ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+            DataOutputStream dictionaryOut = new DataOutputStream(dictionary);
+            ArrayList<Integer> blockOffsets = new ArrayList<Integer>(); //relative to the start of the dictionary
+            byte[] previous = null;
+            source.reset();
+            while(source.next()) {
+                byte[] term = source.term();
+                if(previous != null && PostingIndex.compare(previous, term) >= 0)
+                    throw new IOException("Terms are not sorted: " + new String(term, StandardCharsets.UTF_8) + " after " + new String(previous, StandardCharsets.UTF_8));
+                if(termCount % PostingIndex.TERMS_PER_BLOCK == 0) {
+                    blockOffsets.add(dictionaryOut.size());
+                    VByte.write(dictionaryOut, term.length);
+                    dictionaryOut.write(term);
+                } else {
+                    int shared = 0;
+                    while(shared < previous.length && shared < term.length && previous[shared] == term[shared]) shared++;
+                    VByte.write(dictionaryOut, shared);
+                    VByte.write(dictionaryOut, term.length - shared);
+                    dictionaryOut.write(term, shared, term.length - shared);
+                }
+                previous = term;
+                termCount++;
+
+                List<int[]> list = source.postings();
+                boolean field = Fields.isFieldTerm(term, term.length);
+                double idf = Weighting.idf(N, list.size());
+                int docid = -1;
+                for(int[] p : list) {
+                    if(p[0] <= docid)
+                        throw new IOException("Postings of " + new String(term, StandardCharsets.UTF_8) + " are not sorted by docid at " + p[0]);
+                    docid = p[0];
+                    if(docid >= lengths.length) lengths = Arrays.copyOf(lengths, Math.max(docid + 1, 2 * lengths.length));
+                    if(!field) lengths[docid] += Math.pow(Weighting.weight(p[2], p[1], idf), 2);
+                }
+                maxDocId = Math.max(maxDocId, docid);
+            }
+            dictionaryOut.close();
+
+            /** offsets are known once the dictionary is, so the postings can be appended as they are encoded **/
+            int blockCount = blockOffsets.size();
+            long dictionaryStart = PostingIndex.HEADER_SIZE + 4L * blockCount + (long) PostingIndex.STATS_SIZE * termCount;
+            long postingsStart = dictionaryStart + dictionary.size();
+
+            /** pass 2: per term stats, postings into the temporary file **/
+            ByteArrayOutputStream stats = new ByteArrayOutputStream(PostingIndex.STATS_SIZE * termCount);
+            DataOutputStream statsOut = new DataOutputStream(stats);
+            DataOutputStream postingsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            long end = postingsStart;
+            try {
+                source.reset();
+                while(source.next()) {
+                    List<int[]> list = source.postings();
+                    double idf = Weighting.idf(N, list.size());
+                    statsOut.writeInt(list.size());
+                    statsOut.writeDouble(idf);
+                    statsOut.writeFloat(maxScore(list, 0, list.size(), idf, lengths));
+                    statsOut.writeLong(end);
+                    end += encode(list, idf, lengths, postingsOut);
+                }
+            } finally {
+                postingsOut.close();
+            }
+            statsOut.close();
+            if(end > Integer.MAX_VALUE)
+                throw new IOException("Postings do not fit in a single mapped index file.");
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            try {
+                out.writeInt(PostingIndex.MAGIC);
+                out.writeInt(PostingIndex.VERSION);
+                out.writeInt(termCount);
+                out.writeInt(N);
+                out.writeInt(maxDocId);
+                out.writeInt(blockCount);
+
+                for(int b = 0; b < blockCount; b++) out.writeInt((int) (dictionaryStart + blockOffsets.get(b)));
+
+                stats.writeTo(out);
+                dictionary.writeTo(out);
+
+                InputStream in = new FileInputStream(temporary);
+                try {
+                    byte[] buffer = new byte[1 << 16];
+                    int n;
+                    while((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            source.close();
+            temporary.delete();
+        }
+    }
+
+    /**
+     * upper bound of weight / |d| over postings [from, to), rounded up so float error can't make it too small
+     */
+    private static float maxScore(List<int[]> postings, int from, int to, double idf, double[] lengths) {
+        double max = 0.0;
+        for(int i = from; i < to; i++) {
+            int[] p = postings.get(i);
+            if(lengths[p[0]] == 0.0) continue;
+            double weight = (float) Weighting.weight(p[2], p[1], idf); //as stored in the postings
+            max = Math.max(max, weight / Math.sqrt(lengths[p[0]]));
+        }
+        return Math.nextUp((float) max);
+    }
+
+    /**
+     * pack one docid sorted posting list into delta / variable byte coded blocks
+     * behind a skip table with one entry per block
+     * @return the number of bytes written
+     */
+    private static int encode(List<int[]> postings, double idf, double[] lengths, DataOutputStream output) throws IOException {
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(blocks);
+        int previous = 0;
+        int written = output.size();
+        for(int start = 0; start < postings.size(); start += PostingIndex.BLOCK_SIZE) {
+            int end = Math.min(start + PostingIndex.BLOCK_SIZE, postings.size());
+            output.writeInt(postings.get(end - 1)[0]);
+            output.writeInt(out.size());
+            output.writeFloat(maxScore(postings, start, end, idf, lengths));
+            for(int i = start; i < end; i++) {
+                VByte.write(out, postings.get(i)[0] - previous);
+                previous = postings.get(i)[0];
+            }
+            for(int i = start; i < end; i++) VByte.write(out, postings.get(i)[2]);
+            for(int i = start; i < end; i++) VByte.write(out, postings.get(i)[1]);
+            for(int i = start; i < end; i++) {
+                int[] p = postings.get(i);
+                out.writeFloat((float) Weighting.weight(p[2], p[1], idf));
+            }
+        }
+        out.close();
+        blocks.writeTo(output);
+        return output.size() - written;
+    }
+
+    /**
+     * the postings added to a PostingIndexWriter, terms and lists sorted up front
+     */
+    private static class MemorySource implements Source {
+
+        private final ArrayList<byte[]> terms;
+        private final HashMap<byte[], ArrayList<int[]>> byBytes;
+        private int current;
+
+        MemorySource(HashMap<String, ArrayList<int[]>> postings) {
+            this.terms = new ArrayList<byte[]>();
+            this.byBytes = new HashMap<byte[], ArrayList<int[]>>();
+            for(String term : postings.keySet()) {
+                byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+                ArrayList<int[]> list = postings.get(term);
+                Collections.sort(list, new Comparator<int[]>() {
+                    public int compare(int[] a, int[] b) { return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1); }
+                });
+                this.terms.add(bytes);
+                this.byBytes.put(bytes, list);
+            }
+            Collections.sort(this.terms, new Comparator<byte[]>() {
+                public int compare(byte[] a, byte[] b) { return PostingIndex.compare(a, b); }
+            });
+            this.current = -1;
+        }
+
+        public void reset() { this.current = -1; }
+        public boolean next() { return ++this.current < this.terms.size(); }
+        public byte[] term() { return this.terms.get(this.current); }
+        public List<int[]> postings() { return this.byBytes.get(term()); }
+        public void close() { }
+    }
+
+    /**
+     * The (term, posting) records RawInputReducer writes, read straight from its output files.
+     * Each file is sorted by term (Text's byte order, the same as PostingIndex.compare) and by docid
+     * within a term, and a term is only ever in one file, so the files are merged a term at a time.
+     */
+    public static class SequenceFileSource implements Source {
+
+        private final Configuration conf;
+        private final Path[] parts;
+        private SequenceFile.Reader[] readers;
+        private Text[] keys;
+        private PostingWritable[] values;
+        private boolean[] more; //whether keys[i], values[i] hold a record not yet returned
+        private byte[] term;
+        private final ArrayList<int[]> postings = new ArrayList<int[]>();
+
+        public SequenceFileSource(Configuration conf, List<Path> parts) {
+            this.conf = conf;
+            this.parts = parts.toArray(new Path[parts.size()]);
+        }
+
+        public void reset() throws IOException {
+            close();
+            this.readers = new SequenceFile.Reader[this.parts.length];
+            this.keys = new Text[this.parts.length];
+            this.values = new PostingWritable[this.parts.length];
+            this.more = new boolean[this.parts.length];
+            for(int i = 0; i < this.parts.length; i++) {
+                this.readers[i] = new SequenceFile.Reader(this.conf, SequenceFile.Reader.file(this.parts[i]));
+                this.keys[i] = new Text();
+                this.values[i] = new PostingWritable();
+                this.more[i] = this.readers[i].next(this.keys[i], this.values[i]);
+            }
+        }
+
+        public boolean next() throws IOException {
+            int min = -1;
+            for(int i = 0; i < this.parts.length; i++)
+                if(this.more[i] && (min < 0 || this.keys[i].compareTo(this.keys[min]) < 0)) min = i;
+            if(min < 0) return false;
+            Text key = this.keys[min];
+            this.term = key.copyBytes();
+            this.postings.clear();
+            do {
+                PostingWritable p = this.values[min];
+                this.postings.add(new int[]{p.getDocid(), p.getMaxF(), p.getTf()});
+                this.more[min] = this.readers[min].next(key, p);
+            } while(this.more[min] && WritableComparator.compareBytes(key.getBytes(), 0, key.getLength(), this.term, 0, this.term.length) == 0);
+            return true;
+        }
+
+        public byte[] term() { return this.term; }
+        public List<int[]> postings() { return this.postings; }
+
+        public void close() throws IOException {
+            if(this.readers == null) return;
+            for(SequenceFile.Reader reader : this.readers) if(reader != null) reader.close();
+            this.readers = null;
+        }
+    }
+
+    /**
+     * usage: PostingIndexWriter index.bin part-r-00000 [part-r-00001 ...]
+     */
+    public static void main(String[] args) throws IOException {
+        PostingIndexWriter writer = new PostingIndexWriter();
+        for(int i = 1; i < args.length; i++) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(args[i]), StandardCharsets.UTF_8));
+            try {
+                writer.addTextPostings(reader);
+            } finally {
+                reader.close();
+            }
+        }
+        writer.write(args[0]);
+    }
+}
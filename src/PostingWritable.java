@@ -1,18 +1,53 @@
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.IOException;
 
 /**
  * Created by chaneylc on 10/4/15.
+ *
+ * One posting (docid, tf, maxF) in binary, variable length ints so the usual
+ * small docids and frequencies take a byte or two in the shuffle.
+ * SGMLTokenizerMapper sets maxF, the document's largest term frequency, as it posts the document.
  */
 public class PostingWritable implements Writable {
 
-    public void readFields(DataInput data) {
+    private int docid;
+    private int tf;
+    private int maxF;
 
+    public PostingWritable() { }
+
+    public PostingWritable(int docid, int tf, int maxF) {
+        set(docid, tf, maxF);
+    }
+
+    public void set(int docid, int tf, int maxF) {
+        this.docid = docid;
+        this.tf = tf;
+        this.maxF = maxF;
     }
 
-    public void write(DataOutput data) {
+    public int getDocid() { return this.docid; }
+    public int getTf() { return this.tf; }
+    public int getMaxF() { return this.maxF; }
+
+    public void readFields(DataInput data) throws IOException {
+        this.docid = WritableUtils.readVInt(data);
+        this.tf = WritableUtils.readVInt(data);
+        this.maxF = WritableUtils.readVInt(data);
+    }
+
+    public void write(DataOutput data) throws IOException {
+        WritableUtils.writeVInt(data, this.docid);
+        WritableUtils.writeVInt(data, this.tf);
+        WritableUtils.writeVInt(data, this.maxF);
+    }
 
+    /** same order as the old text postings: docid maxF tf **/
+    public String toString() {
+        return this.docid + " " + this.maxF + " " + this.tf;
     }
 }
@@ -0,0 +1,82 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javafx.util.Pair;
+
+/**
+ * Keeps one VectorSpaceRetrievalSystem resident and answers queries with a line protocol:
+ * the client sends one query per line and gets back "docid : score" lines followed by an empty line.
+ * A "#metrics" line gets the searcher's Metrics instead, as text, or as JSON for "#metrics json".
+ *
+ * serve(port) listens on the loopback interface only and handles each connection on a
+ * fixed thread pool, so several clients can query the same loaded index concurrently.
+ */
+public class QueryServer {
+
+    public static final String METRICS = "#metrics";
+
+    private final VectorSpaceRetrievalSystem vsrs;
+    private final int k;
+    private final int threads;
+
+    public QueryServer(VectorSpaceRetrievalSystem vsrs, int k) {
+        this(vsrs, k, Runtime.getRuntime().availableProcessors());
+    }
+
+    public QueryServer(VectorSpaceRetrievalSystem vsrs, int k, int threads) {
+        this.vsrs = vsrs;
+        this.k = k;
+        this.threads = threads;
+    }
+
+    /**
+     * answer queries until the input is closed
+     */
+    public void serve(InputStream in, OutputStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+        String line;
+        while((line = reader.readLine()) != null) {
+            line = line.trim();
+            if(line.equals(METRICS)) {
+                writer.print(this.vsrs.getMetrics().toText());
+            } else if(line.equals(METRICS + " json")) {
+                writer.println(this.vsrs.getMetrics().toJson());
+            } else if(!line.isEmpty()) {
+                for(Pair<Integer, Double> result : this.vsrs.search(line, this.k))
+                    writer.println(result.getKey() + " : " + result.getValue());
+            }
+            writer.println();
+            writer.flush();
+        }
+    }
+
+    public void serve(int port) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        try {
+            while(!server.isClosed()) {
+                final Socket client = server.accept();
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            serve(client.getInputStream(), client.getOutputStream());
+                        } catch(IOException e) {
+                            System.err.println("Query connection failed: " + e.getMessage());
+                        } finally {
+                            try { client.close(); } catch(IOException ignored) { }
+                        }
+                    }
+                });
+            }
+        } finally {
+            server.close();
+            pool.shutdown();
+        }
+    }
+}
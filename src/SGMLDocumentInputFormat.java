@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * One record per <DOC> ... </DOC>, however many lines the document spans, keyed on the
+ * (uncompressed) offset of its <DOC> tag. Anything between documents is skipped.
+ *
+ * Uncompressed files are split anywhere: a split owns the documents whose <DOC> tag starts
+ * inside it, reading past its end to finish the last one, and a reader starting mid-document
+ * just scans forward to the next <DOC>, the previous split's reader having taken that document.
+ * Compressed files (anything CompressionCodecFactory knows by extension, e.g. .gz, .bz2) are
+ * decompressed on the fly and read whole by one mapper, so a large collection should come
+ * as several compressed files to get parallel maps.
+ */
+public class SGMLDocumentInputFormat extends FileInputFormat<LongWritable, Text> {
+
+    public static final byte[] DOC_OPEN = "<DOC>".getBytes(StandardCharsets.US_ASCII);
+    public static final byte[] DOC_CLOSE = "</DOC>".getBytes(StandardCharsets.US_ASCII);
+
+    public RecordReader<LongWritable, Text> createRecordReader(InputSplit split, TaskAttemptContext context) {
+        return new SGMLDocumentRecordReader();
+    }
+
+    protected boolean isSplitable(JobContext context, Path file) {
+        return new CompressionCodecFactory(context.getConfiguration()).getCodec(file) == null;
+    }
+
+    /**
+     * first position of pattern in bytes[from, to), -1 if there is none
+     */
+    public static int indexOf(byte[] bytes, int from, int to, byte[] pattern) {
+        for(int i = from; i + pattern.length <= to; i++) {
+            int j = 0;
+            while(j < pattern.length && bytes[i + j] == pattern[j]) j++;
+            if(j == pattern.length) return i;
+        }
+        return -1;
+    }
+
+    public static class SGMLDocumentRecordReader extends RecordReader<LongWritable, Text> {
+
+        private InputStream in;
+        private Decompressor decompressor;
+        private long start;
+        private long end;
+        private long position; //uncompressed offset of the next byte read
+        private byte[] buffer = new byte[64 * 1024];
+        private int bufferLength;
+        private int bufferPosition;
+        private final LongWritable key = new LongWritable();
+        private final Text value = new Text();
+
+        public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException {
+            FileSplit split = (FileSplit) genericSplit;
+            Configuration conf = context.getConfiguration();
+            Path file = split.getPath();
+            FileSystem fs = file.getFileSystem(conf);
+            FSDataInputStream fileIn = fs.open(file);
+            CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(file);
+            if(codec != null) {
+                this.decompressor = CodecPool.getDecompressor(codec);
+                this.in = codec.createInputStream(fileIn, this.decompressor);
+                this.start = 0;
+                this.end = Long.MAX_VALUE;
+            } else {
+                this.start = split.getStart();
+                this.end = this.start + split.getLength();
+                fileIn.seek(this.start);
+                this.in = fileIn;
+            }
+            this.position = this.start;
+        }
+
+        public boolean nextKeyValue() throws IOException {
+            /** find the next <DOC> that starts inside the split **/
+            int matched = 0;
+            int b;
+            while(matched < DOC_OPEN.length) {
+                if(this.position - matched >= this.end && matched == 0) return false;
+                if((b = read()) < 0) return false;
+                if(b == DOC_OPEN[matched]) matched++;
+                else matched = b == DOC_OPEN[0] ? 1 : 0; //'<' only appears first in the pattern
+            }
+            long docStart = this.position - DOC_OPEN.length;
+            if(docStart >= this.end) return false;
+
+            /** copy up to and including </DOC>, past the end of the split if need be **/
+            this.key.set(docStart);
+            this.value.clear();
+            this.value.append(DOC_OPEN, 0, DOC_OPEN.length);
+            matched = 0;
+            while(matched < DOC_CLOSE.length) {
+                int from = this.bufferPosition;
+                if(from == this.bufferLength) {
+                    if(!fill()) return true; //truncated last document, index what there is
+                    from = 0;
+                }
+                int i = from;
+                while(i < this.bufferLength && matched < DOC_CLOSE.length) {
+                    byte c = this.buffer[i++];
+                    if(c == DOC_CLOSE[matched]) matched++;
+                    else matched = c == DOC_CLOSE[0] ? 1 : 0;
+                }
+                this.value.append(this.buffer, from, i - from);
+                this.position += i - from;
+                this.bufferPosition = i;
+            }
+            return true;
+        }
+
+        private int read() throws IOException {
+            if(this.bufferPosition == this.bufferLength && !fill()) return -1;
+            this.position++;
+            return this.buffer[this.bufferPosition++] & 0xFF;
+        }
+
+        private boolean fill() throws IOException {
+            int n = this.in.read(this.buffer, 0, this.buffer.length);
+            if(n <= 0) return false;
+            this.bufferLength = n;
+            this.bufferPosition = 0;
+            return true;
+        }
+
+        public LongWritable getCurrentKey() { return this.key; }
+        public Text getCurrentValue() { return this.value; }
+
+        public float getProgress() {
+            if(this.end == Long.MAX_VALUE || this.end == this.start) return 0.0f;
+            return Math.min(1.0f, (this.position - this.start) / (float) (this.end - this.start));
+        }
+
+        public void close() throws IOException {
+            try {
+                if(this.in != null) this.in.close();
+            } finally {
+                if(this.decompressor != null) CodecPool.returnDecompressor(this.decompressor);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single pass tokenizer over the raw UTF-8 bytes of a record (a Hadoop Text), replacing
+ * replaceAll("(\\<.*?\\>)", "") + StringTokenizer + toLowerCase in SGMLTokenizerMapper.
+ *
+ * SGML tags are skipped as they are met, without splitting the text around them, exactly like
+ * removing them first. Opening and closing tags of the Fields (TITLE, AUTHOR, ...) are noted on
+ * the way, so every term knows which field it came from. Terms are the runs between the old delimiter set (whitespace, digits and
+ * most punctuation), lower cased into one reused char buffer, so reading a term allocates nothing.
+ */
+public class SGMLTokenizer {
+
+    /** the StringTokenizer delimiters used before, everything up to ' ' also ends a term **/
+    private static final String DELIMITERS = " :\t\n0123456789.,\\/'~`!?!@#$%^&*()_+-=";
+    private static final boolean[] DELIMITER = new boolean[128];
+    static {
+        for(int c = 0; c <= ' '; c++) DELIMITER[c] = true;
+        for(int i = 0; i < DELIMITERS.length(); i++) DELIMITER[DELIMITERS.charAt(i)] = true;
+    }
+
+    private static final byte[] DOCNO_OPEN = "<DOCNO>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DOCNO_CLOSE = "</DOCNO>".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] bytes;
+    private int position;
+    private int end;
+    private int lastTagEnd; //index of the last '>' in the record, a '<' after it can't open a tag
+    private char[] term;
+    private int termLength;
+    private int field; //field the scan is in
+    private int termField; //field the current term started in
+
+    public SGMLTokenizer() {
+        this.term = new char[64];
+    }
+
+    public void reset(byte[] bytes, int length) {
+        reset(bytes, 0, length);
+    }
+
+    /** tokenize bytes[offset, offset + length) **/
+    public void reset(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.position = offset;
+        this.end = offset + length;
+        this.lastTagEnd = this.end - 1;
+        while(this.lastTagEnd >= offset && bytes[this.lastTagEnd] != '>') this.lastTagEnd--;
+        this.termLength = 0;
+        this.field = Fields.NONE;
+        this.termField = Fields.NONE;
+    }
+
+    /**
+     * Find the record's <DOCNO> n </DOCNO>, parse n and carry on tokenizing after it, so anything
+     * before it (the <DOC> tag, the cranfieldNNNN line prefix) is never made into terms.
+     * @return the docid, -1 if there is no DOCNO or it is not a number
+     */
+    public int readDocNo() {
+        int open = indexOf(DOCNO_OPEN, this.position);
+        if(open < 0) return -1;
+        int close = indexOf(DOCNO_CLOSE, open + DOCNO_OPEN.length);
+        if(close < 0) return -1;
+        this.position = close + DOCNO_CLOSE.length;
+
+        int value = -1;
+        boolean ended = false; //white space after the number
+        for(int i = open + DOCNO_OPEN.length; i < close; i++) {
+            int b = this.bytes[i];
+            if(b <= ' ') {
+                ended = value >= 0;
+            } else if(b >= '0' && b <= '9' && !ended && value <= (Integer.MAX_VALUE - 9) / 10) {
+                value = Math.max(value, 0) * 10 + (b - '0');
+            } else {
+                return -1; //docids are dense ints, anything else can't be indexed
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Read the next lower cased term.
+     * @return false at the end of the record
+     */
+    public boolean nextTerm() {
+        this.termLength = 0;
+        int c;
+        while((c = nextChar()) >= 0) {
+            if(c < 128 && DELIMITER[c]) {
+                if(this.termLength > 0) return true;
+            } else {
+                if(this.termLength == 0) this.termField = this.field;
+                append(Character.toLowerCase((char) c));
+            }
+        }
+        return this.termLength > 0;
+    }
+
+    /** true if c ends a term **/
+    public static boolean isDelimiter(char c) { return c < 128 && DELIMITER[c]; }
+
+    public char[] termBuffer() { return this.term; }
+    public int termLength() { return this.termLength; }
+
+    /** Fields constant of the current term, Fields.NONE outside the known fields **/
+    public int field() { return this.termField; }
+
+    private void append(char c) {
+        if(this.termLength == this.term.length) {
+            char[] t = new char[this.term.length * 2];
+            System.arraycopy(this.term, 0, t, 0, this.termLength);
+            this.term = t;
+        }
+        this.term[this.termLength++] = c;
+    }
+
+    /** first position of pattern in bytes[from, end), -1 if there is none **/
+    private int indexOf(byte[] pattern, int from) {
+        for(int i = from; i + pattern.length <= this.end; i++) {
+            int j = 0;
+            while(j < pattern.length && this.bytes[i + j] == pattern[j]) j++;
+            if(j == pattern.length) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * track the field from the tag between bytes[start, end), other tags leave it as it is
+     */
+    private void tag(int start, int end) {
+        boolean closing = start < end && this.bytes[start] == '/';
+        int f = Fields.field(this.bytes, closing ? start + 1 : start, end);
+        if(f < 0) return;
+        this.field = closing ? Fields.NONE : f;
+    }
+
+    /**
+     * next character outside of tags, decoding UTF-8, or -1 at the end of the record
+     */
+    private int nextChar() {
+        while(this.position < this.end) {
+            int b = this.bytes[this.position] & 0xFF;
+            if(b == '<' && this.position < this.lastTagEnd) {
+                int p = this.position + 1;
+                while(this.bytes[p] != '>') p++; //stops at lastTagEnd at the latest
+                tag(this.position + 1, p);
+                this.position = p + 1;
+                continue;
+            }
+            if(b < 0x80) {
+                this.position++;
+                return b;
+            }
+            if((b >> 5) == 0x6 && this.position + 1 < this.end) {
+                int c = ((b & 0x1F) << 6) | (this.bytes[this.position + 1] & 0x3F);
+                this.position += 2;
+                return c;
+            }
+            if((b >> 4) == 0xE && this.position + 2 < this.end) {
+                int c = ((b & 0x0F) << 12) | ((this.bytes[this.position + 1] & 0x3F) << 6) | (this.bytes[this.position + 2] & 0x3F);
+                this.position += 3;
+                return c;
+            }
+            this.position++; //4 byte sequences and continuation bytes
+            while(this.position < this.end && (this.bytes[this.position] & 0xC0) == 0x80) this.position++;
+            return 0xFFFD;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.Arrays;
+
+/**
+ * Per query score accumulator keyed on dense docids: a double[] indexed by docid plus
+ * the list of docids touched by the current query, so nothing is boxed while postings
+ * are scored and only touched documents are visited afterwards.
+ *
+ * reset() is O(1): each slot carries the generation of the query that last wrote it,
+ * bumping the generation makes every slot stale without clearing the arrays.
+ * Not thread safe, keep one per thread and reuse it across queries.
+ */
+public class ScoreAccumulator {
+
+    private double[] scores;
+    private int[] generations;
+    private int[] touched;
+    private int size;
+    private int generation;
+
+    public ScoreAccumulator(int maxDocId) {
+        this.scores = new double[maxDocId + 1];
+        this.generations = new int[maxDocId + 1];
+        this.touched = new int[16];
+        this.size = 0;
+        this.generation = 1;
+    }
+
+    public void add(int docid, double score) {
+        if(docid >= this.scores.length) grow(docid);
+        if(this.generations[docid] != this.generation) {
+            this.generations[docid] = this.generation;
+            this.scores[docid] = score;
+            if(this.size == this.touched.length) {
+                int[] t = new int[this.touched.length * 2];
+                System.arraycopy(this.touched, 0, t, 0, this.size);
+                this.touched = t;
+            }
+            this.touched[this.size++] = docid;
+        } else {
+            this.scores[docid] += score;
+        }
+    }
+
+    /** number of documents touched since the last reset **/
+    public int size() { return this.size; }
+
+    /** i-th touched docid, in the order they were first touched **/
+    public int docid(int i) { return this.touched[i]; }
+
+    public double score(int docid) {
+        if(docid >= this.scores.length || this.generations[docid] != this.generation) return 0.0;
+        return this.scores[docid];
+    }
+
+    public void reset() {
+        this.size = 0;
+        if(++this.generation == 0) { //wrapped around, old stamps could look current again
+            Arrays.fill(this.generations, 0);
+            this.generation = 1;
+        }
+    }
+
+    private void grow(int docid) {
+        int capacity = Math.max(docid + 1, this.scores.length * 2);
+        double[] s = new double[capacity];
+        int[] g = new int[capacity];
+        System.arraycopy(this.scores, 0, s, 0, this.scores.length);
+        System.arraycopy(this.generations, 0, g, 0, this.generations.length);
+        this.scores = s;
+        this.generations = g;
+    }
+}
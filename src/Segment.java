@@ -0,0 +1,78 @@
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * One immutable piece of a segmented index: a PostingIndex file (seg_N.bin) and the set of
+ * docids deleted from it since it was written (seg_N_G.del, a bitset of docids).
+ *
+ * Deletes are never rewritten in place: every change is a new file under the next generation G,
+ * and the manifest names the generation each segment is at, so renaming the manifest publishes
+ * new deletes and new segments together. Generation 0 means nothing is deleted and has no file.
+ *
+ * A docid is deleted from a segment when it is deleted from the collection or when a newer
+ * segment indexes the same docid again, so a live docid is in exactly one segment.
+ * The postings keep tf and maxF, which is what lets weights be recomputed with collection
+ * wide statistics instead of the segment's own idf.
+ */
+public class Segment {
+
+    public static final String INDEX_SUFFIX = ".bin";
+    public static final String DELETES_SUFFIX = ".del";
+
+    private final String name;
+    private final PostingIndex index;
+    private final BitSet deleted;
+    private final int deletesGeneration;
+
+    public Segment(String name, PostingIndex index, BitSet deleted, int deletesGeneration) {
+        this.name = name;
+        this.index = index;
+        this.deleted = deleted;
+        this.deletesGeneration = deletesGeneration;
+    }
+
+    public static Segment open(File dir, String name, int deletesGeneration) throws IOException {
+        return new Segment(name, PostingIndex.open(new File(dir, name + INDEX_SUFFIX).getPath()),
+                readDeletes(dir, name, deletesGeneration), deletesGeneration);
+    }
+
+    public String getName() { return this.name; }
+    public PostingIndex getIndex() { return this.index; }
+    public BitSet getDeleted() { return this.deleted; }
+    public int getDeletesGeneration() { return this.deletesGeneration; }
+
+    /** documents written to the segment, deleted ones included **/
+    public int getDocumentCount() { return this.index.getN(); }
+
+    public boolean isDeleted(int docid) { return this.deleted.get(docid); }
+
+    public static File deletesFile(File dir, String name, int generation) {
+        return new File(dir, name + "_" + generation + DELETES_SUFFIX);
+    }
+
+    public static BitSet readDeletes(File dir, String name, int generation) throws IOException {
+        if(generation == 0) return new BitSet();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(deletesFile(dir, name, generation))));
+        try {
+            long[] words = new long[in.readInt()];
+            for(int i = 0; i < words.length; i++) words[i] = in.readLong();
+            return BitSet.valueOf(words);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * write the deletes of a new generation, nothing reads the file until a manifest names it
+     */
+    public static void writeDeletes(File dir, String name, int generation, BitSet deleted) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(deletesFile(dir, name, generation))));
+        try {
+            long[] words = deleted.toLongArray();
+            out.writeInt(words.length);
+            for(long w : words) out.writeLong(w);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size-tiered merging of the segments of a SegmentWriter, on a background thread.
+ *
+ * A segment's tier is log base mergeFactor of its document count over minSegmentSize, so
+ * segments of similar size share a tier. As soon as a tier holds mergeFactor segments they are
+ * merged into one segment of the next tier, dropping their deleted documents. Each document is
+ * therefore rewritten about log(collection size) times, while the number of segments a query
+ * has to visit stays logarithmic too.
+ */
+public class SegmentMerger {
+
+    public static final int DEFAULT_MERGE_FACTOR = 4;
+    public static final int DEFAULT_MIN_SEGMENT_SIZE = 100;
+
+    private final SegmentWriter writer;
+    private final int mergeFactor;
+    private final int minSegmentSize;
+    private final ExecutorService executor;
+
+    public SegmentMerger(SegmentWriter writer) {
+        this(writer, DEFAULT_MERGE_FACTOR, DEFAULT_MIN_SEGMENT_SIZE);
+    }
+
+    public SegmentMerger(SegmentWriter writer, int mergeFactor, int minSegmentSize) {
+        this.writer = writer;
+        this.mergeFactor = mergeFactor;
+        this.minSegmentSize = minSegmentSize;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "segment-merger");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * schedule merges in the background, returns right away
+     */
+    public void maybeMerge() {
+        this.executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    List<String> merge;
+                    while((merge = findMerge(writer.segments())) != null) merge(merge);
+                } catch(IOException e) {
+                    System.err.println("Segment merge failed: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the segments of the first tier holding mergeFactor of them, null if none
+     */
+    public List<String> findMerge(List<String> segments) {
+        ArrayList<List<String>> tiers = new ArrayList<List<String>>();
+        for(String name : segments) {
+            int tier = tier(this.writer.documentCount(name));
+            while(tiers.size() <= tier) tiers.add(new ArrayList<String>());
+            tiers.get(tier).add(name);
+            if(tiers.get(tier).size() == this.mergeFactor) return tiers.get(tier);
+        }
+        return null;
+    }
+
+    private int tier(int documents) {
+        int tier = 0;
+        long size = this.minSegmentSize;
+        while(documents > size) {
+            size *= this.mergeFactor;
+            tier++;
+        }
+        return tier;
+    }
+
+    /**
+     * rewrite the live postings of the given segments into one new segment, streamed from the
+     * writer's mappings of them a term at a time
+     */
+    public void merge(List<String> names) throws IOException {
+        PostingIndex[] indexes = new PostingIndex[names.size()];
+        BitSet[] deletes = new BitSet[names.size()];
+        HashMap<String, BitSet> mergedDeletes = new HashMap<String, BitSet>();
+        BitSet documents = new BitSet();
+        for(int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            indexes[i] = this.writer.index(name);
+            deletes[i] = this.writer.deletes(name);
+            mergedDeletes.put(name, deletes[i]);
+            BitSet live = this.writer.documents(name);
+            live.andNot(deletes[i]);
+            documents.or(live);
+        }
+        this.writer.install(new SegmentSource(indexes, deletes), documents, names, mergedDeletes);
+    }
+
+    /**
+     * The live postings of the segments being merged. The dictionaries are merged in term order,
+     * a term's postings from each segment are gathered without the deleted docids and sorted by docid
+     * (a live docid is in only one segment), and terms left without postings are skipped.
+     */
+    private static class SegmentSource implements PostingIndexWriter.Source {
+
+        private final PostingIndex[] indexes;
+        private final BitSet[] deletes;
+        private final PostingIndex.Terms[] terms;
+        private final boolean[] more; //whether terms[i] is on a term not yet returned
+        private byte[] term;
+        private final ArrayList<int[]> postings = new ArrayList<int[]>();
+
+        SegmentSource(PostingIndex[] indexes, BitSet[] deletes) {
+            this.indexes = indexes;
+            this.deletes = deletes;
+            this.terms = new PostingIndex.Terms[indexes.length];
+            this.more = new boolean[indexes.length];
+        }
+
+        public void reset() {
+            for(int i = 0; i < this.indexes.length; i++) {
+                this.terms[i] = this.indexes[i].terms(0);
+                this.more[i] = this.terms[i].next();
+            }
+        }
+
+        public boolean next() {
+            while(true) {
+                int min = -1;
+                for(int i = 0; i < this.terms.length; i++)
+                    if(this.more[i] && (min < 0 || this.terms[i].compareTo(this.terms[min]) < 0)) min = i;
+                if(min < 0) return false;
+                this.term = Arrays.copyOf(this.terms[min].bytes(), this.terms[min].length());
+                this.postings.clear();
+                int sources = 0;
+                for(int i = min; i < this.terms.length; i++) {
+                    if(!this.more[i] || this.terms[i].compareTo(this.term) != 0) continue;
+                    int before = this.postings.size();
+                    PostingIndex.Postings p = this.indexes[i].postings(this.terms[i].termId());
+                    while(p.next())
+                        if(!this.deletes[i].get(p.docid())) this.postings.add(new int[]{p.docid(), p.maxF(), p.tf()});
+                    if(this.postings.size() > before) sources++;
+                    this.more[i] = this.terms[i].next();
+                }
+                if(sources > 1) {
+                    Collections.sort(this.postings, new Comparator<int[]>() {
+                        public int compare(int[] a, int[] b) { return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1); }
+                    });
+                }
+                if(!this.postings.isEmpty()) return true;
+            }
+        }
+
+        public byte[] term() { return this.term; }
+        public List<int[]> postings() { return this.postings; }
+        public void close() { }
+    }
+
+    /** finish the scheduled merges **/
+    public void close() throws IOException {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            throw new IOException("Interrupted waiting for segment merges.", e);
+        }
+    }
+}
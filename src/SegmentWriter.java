@@ -0,0 +1,300 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends to a segmented index directory instead of rebuilding the whole collection.
+ *
+ * Directory layout:
+ *   segments    the manifest, one "segment deletesGeneration" line per segment, oldest first
+ *   seg_N.bin   PostingIndex of segment N
+ *   seg_N_G.del docids deleted from segment N as of generation G, see Segment
+ *
+ * add() indexes new documents with LocalIndexer into a new segment, re-added docids are
+ * deleted from the older segments that hold them. The writer keeps each segment mapped along with
+ * the set of docids it was written with, so a delete only touches the segments the docid is in. A change only ever writes new files (a segment, deletes
+ * under a new generation), which nothing reads until the manifest names them. Renaming the
+ * new manifest into place then publishes the whole change at once, so SegmentedIndex.open
+ * always sees a consistent index. Files the new manifest no longer names are removed right
+ * after it, a reader that read the old manifest and misses one simply reads the manifest again.
+ * After each add a SegmentMerger compacts segments in the background.
+ *
+ * All methods are safe to call from several threads, one SegmentWriter per directory.
+ */
+public class SegmentWriter {
+
+    public static final String MANIFEST = "segments";
+
+    private final File dir;
+    private final StopWordSet stopWords;
+    private final int threads;
+    private final ArrayList<String> names;
+    private final HashMap<String, BitSet> deletes;
+    private final HashMap<String, Integer> deletesGenerations;
+    private final HashMap<String, PostingIndex> indexes;
+    private final HashMap<String, BitSet> documents; //docids each segment was written with, deleted ones included
+    private final SegmentMerger merger;
+    private int generation; //last number used for a segment or a deletes file
+
+    public SegmentWriter(File dir, StopWordSet stopWords, int threads) throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create index directory: " + dir);
+        this.dir = dir;
+        this.stopWords = stopWords;
+        this.threads = threads;
+        LinkedHashMap<String, Integer> manifest = readManifest(dir);
+        this.names = new ArrayList<String>(manifest.keySet());
+        this.deletesGenerations = new HashMap<String, Integer>(manifest);
+        this.deletes = new HashMap<String, BitSet>();
+        this.indexes = new HashMap<String, PostingIndex>();
+        this.documents = new HashMap<String, BitSet>();
+        this.generation = 0;
+        for(String name : this.names) {
+            this.deletes.put(name, Segment.readDeletes(dir, name, manifest.get(name)));
+            PostingIndex index = PostingIndex.open(segmentFile(name).getPath());
+            this.indexes.put(name, index);
+            this.documents.put(name, documents(index));
+            this.generation = Math.max(this.generation, Integer.parseInt(name.substring(name.indexOf('_') + 1)));
+            this.generation = Math.max(this.generation, manifest.get(name));
+        }
+        removeUnreferenced(true); //left behind by a writer that stopped half way through a change
+        this.merger = new SegmentMerger(this);
+    }
+
+    public File getDirectory() { return this.dir; }
+    public SegmentMerger getMerger() { return this.merger; }
+
+    /**
+     * index a collection file (or directory of them) into a new segment
+     * @return the new segment's name, null if there was nothing to index
+     */
+    public String add(File input) throws IOException {
+        PostingIndexWriter writer = new LocalIndexer(this.stopWords, this.threads).build(input);
+        BitSet documents = new BitSet();
+        for(int docid : writer.getDocuments()) documents.set(docid);
+        String name = install(writer.source(), documents, null, null);
+        if(name != null) this.merger.maybeMerge();
+        return name;
+    }
+
+    /** delete documents from the collection **/
+    public synchronized void delete(int... docids) throws IOException {
+        BitSet deleted = new BitSet();
+        for(int docid : docids) deleted.set(docid);
+        boolean changed = false;
+        for(String name : this.names) {
+            if(setDeleted(name, deleted)) changed = true;
+        }
+        if(!changed) return;
+        writeManifest();
+        removeUnreferenced(false);
+    }
+
+    /**
+     * mark the docids the segment holds deleted, writing its deletes under a new generation if
+     * that changed anything
+     * @return true if it did
+     */
+    private boolean setDeleted(String name, BitSet docids) throws IOException {
+        BitSet deleted = this.deletes.get(name);
+        BitSet added = (BitSet) docids.clone();
+        added.and(this.documents.get(name));
+        added.andNot(deleted);
+        if(added.isEmpty()) return false;
+        deleted.or(added);
+        writeDeletes(name, deleted);
+        return true;
+    }
+
+    /** docids with at least one posting in index, read once per segment when the writer opens **/
+    private static BitSet documents(PostingIndex index) {
+        BitSet documents = new BitSet(index.getMaxDocId() + 1);
+        for(int t = 0; t < index.getTermCount(); t++) {
+            PostingIndex.Postings p = index.postings(t);
+            while(p.next()) documents.set(p.docid());
+        }
+        return documents;
+    }
+
+    private void writeDeletes(String name, BitSet deleted) throws IOException {
+        int generation = ++this.generation;
+        Segment.writeDeletes(this.dir, name, generation, deleted);
+        this.deletesGenerations.put(name, generation);
+    }
+
+    /** names of every segment, oldest first **/
+    public synchronized List<String> segments() {
+        return new ArrayList<String>(this.names);
+    }
+
+    /** documents written to the segment, deleted ones included **/
+    public synchronized int documentCount(String name) {
+        BitSet documents = this.documents.get(name);
+        return documents == null ? 0 : documents.cardinality();
+    }
+
+    /** copy of the docids written to a segment **/
+    public synchronized BitSet documents(String name) {
+        return (BitSet) this.documents.get(name).clone();
+    }
+
+    /** the writer's mapping of a segment, valid even after the segment is merged away **/
+    public synchronized PostingIndex index(String name) {
+        return this.indexes.get(name);
+    }
+
+    /** copy of a segment's deletes as they are now **/
+    public synchronized BitSet deletes(String name) {
+        return (BitSet) this.deletes.get(name).clone();
+    }
+
+    File segmentFile(String name) { return new File(this.dir, name + Segment.INDEX_SUFFIX); }
+
+    /**
+     * Write a new segment from source and put it in the manifest.
+     * documents are the docids source holds postings of.
+     * For a merge, merged are the source segments, replaced by the new one at the position of the
+     * oldest of them, and mergedDeletes their deletes when the merge started: anything deleted
+     * from them while it ran is still deleted in the new segment.
+     */
+    synchronized String install(PostingIndexWriter.Source source, BitSet documents, List<String> merged, Map<String, BitSet> mergedDeletes) throws IOException {
+        if(documents.isEmpty() && merged == null) {
+            source.close();
+            return null;
+        }
+
+        String name = "seg_" + (++this.generation);
+        File tmp = new File(this.dir, name + Segment.INDEX_SUFFIX + ".tmp");
+        PostingIndexWriter.write(source, documents.cardinality(), new FileOutputStream(tmp));
+        replace(tmp, segmentFile(name));
+        PostingIndex index = PostingIndex.open(segmentFile(name).getPath());
+
+        BitSet deleted = new BitSet();
+        this.deletes.put(name, deleted);
+        this.deletesGenerations.put(name, 0);
+        if(merged != null) {
+            for(String m : merged) {
+                BitSet since = (BitSet) this.deletes.get(m).clone();
+                since.andNot(mergedDeletes.get(m));
+                deleted.or(since);
+            }
+            if(!deleted.isEmpty()) writeDeletes(name, deleted);
+            int position = this.names.indexOf(merged.get(0));
+            this.names.removeAll(merged);
+            this.names.add(position, name);
+            for(String m : merged) {
+                this.deletes.remove(m);
+                this.deletesGenerations.remove(m);
+                this.indexes.remove(m);
+                this.documents.remove(m);
+            }
+        } else {
+            /** a newer version of a docid replaces the older ones **/
+            for(String old : this.names) setDeleted(old, documents);
+            this.names.add(name);
+        }
+        this.indexes.put(name, index);
+        this.documents.put(name, documents);
+        writeManifest(); //publishes the segment and every deletes file written for it at once
+        removeUnreferenced(false);
+        return name;
+    }
+
+    /** wait for background merges and stop the merger **/
+    public void close() throws IOException {
+        this.merger.close();
+    }
+
+    private void writeManifest() throws IOException {
+        File tmp = new File(this.dir, MANIFEST + ".tmp");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+        try {
+            for(String name : this.names) out.println(name + " " + this.deletesGenerations.get(name));
+        } finally {
+            out.close();
+        }
+        replace(tmp, new File(this.dir, MANIFEST));
+    }
+
+    /**
+     * Delete the segment and deletes files the manifest doesn't name (merged away segments,
+     * older deletes generations), and with temporaries also the .tmp files of an interrupted write.
+     * Snapshots that already opened a removed file keep reading it, a segment through its mapping
+     * and deletes from the bitset read on open.
+     */
+    private void removeUnreferenced(boolean temporaries) {
+        HashSet<String> referenced = new HashSet<String>();
+        for(String name : this.names) {
+            referenced.add(segmentFile(name).getName());
+            int generation = this.deletesGenerations.get(name);
+            if(generation > 0) referenced.add(Segment.deletesFile(this.dir, name, generation).getName());
+        }
+        File[] files = this.dir.listFiles();
+        if(files == null) return;
+        for(File f : files) {
+            String n = f.getName();
+            boolean segmentFile = n.startsWith("seg_") && (n.endsWith(Segment.INDEX_SUFFIX) || n.endsWith(Segment.DELETES_SUFFIX));
+            if((segmentFile && !referenced.contains(n)) || (temporaries && n.endsWith(".tmp"))) f.delete();
+        }
+    }
+
+    /**
+     * @return every segment's name and deletes generation, oldest segment first
+     */
+    public static LinkedHashMap<String, Integer> readManifest(File dir) throws IOException {
+        LinkedHashMap<String, Integer> segments = new LinkedHashMap<String, Integer>();
+        File manifest = new File(dir, MANIFEST);
+        if(!manifest.exists()) return segments;
+        for(String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if(line.isEmpty()) continue;
+            int split = line.indexOf(' ');
+            if(split < 0) throw new IOException("Bad manifest line: " + line);
+            segments.put(line.substring(0, split), Integer.parseInt(line.substring(split + 1).trim()));
+        }
+        return segments;
+    }
+
+    static void replace(File from, File to) throws IOException {
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * usage: SegmentWriter dir stopwords [-threads n] (-add input | -delete docid ... | -merge)
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 3) {
+            System.err.println("usage: SegmentWriter dir stopwords [-threads n] (-add input | -delete docid ... | -merge)");
+            System.exit(1);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        int i = 2;
+        if(args[i].equals("-threads") && i + 1 < args.length) {
+            threads = Integer.parseInt(args[i + 1]);
+            i += 2;
+        }
+        SegmentWriter writer = new SegmentWriter(new File(args[0]), StopWordSet.load(args[1]), threads);
+        try {
+            if(args[i].equals("-add")) {
+                for(int j = i + 1; j < args.length; j++) System.err.println("Added " + writer.add(new File(args[j])));
+            } else if(args[i].equals("-delete")) {
+                int[] docids = new int[args.length - i - 1];
+                for(int j = 0; j < docids.length; j++) docids[j] = Integer.parseInt(args[i + 1 + j]);
+                writer.delete(docids);
+            } else if(args[i].equals("-merge")) {
+                writer.getMerger().maybeMerge();
+            }
+        } finally {
+            writer.close();
+        }
+        System.err.println("Segments: " + writer.segments());
+    }
+}
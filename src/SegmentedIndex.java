@@ -0,0 +1,220 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read only snapshot of a segmented index directory, searched as one collection.
+ *
+ * Scores use collection wide statistics: N and df are summed over the segments and the
+ * weight of a posting is recomputed as tf / maxF * idf from those global values, so a document
+ * scores the same whichever segment it was indexed into. The document vector lengths depend
+ * on every global idf and are computed once when the snapshot is opened, in one pass over
+ * the postings. Deleted documents still count in N and df until a merge drops them, the same
+ * trade off as other segment based engines.
+ *
+ * Segments are searched term-at-a-time into one ScoreAccumulator, docids being global: the
+ * MaxScore bounds stored in each segment use its own idf, not the global one, so they can't
+ * prune here and VectorSpaceRetrievalSystem.setPruning has no effect on a segmented index.
+ * Open a new snapshot to see updates made by a SegmentWriter; open(dir, previous) only pays
+ * for what changed, a delete costs reading one bitset.
+ */
+public class SegmentedIndex {
+
+    private final Segment[] segments;
+    private final long N;
+    private final double[] lengths; //squared vector length per live docid
+    private final int maxDocId;
+
+    private final ThreadLocal<ScoreAccumulator> accumulators = new ThreadLocal<ScoreAccumulator>() {
+        protected ScoreAccumulator initialValue() { return new ScoreAccumulator(maxDocId); }
+    };
+
+    public SegmentedIndex(List<Segment> segments) {
+        this(segments.toArray(new Segment[segments.size()]), null);
+    }
+
+    /**
+     * @param previous snapshot whose N and vector lengths are reused if it has exactly the same
+     * segments (only deletes changed: those count in N and df, and a deleted docid's length is never read)
+     */
+    private SegmentedIndex(Segment[] segments, SegmentedIndex previous) {
+        this.segments = segments;
+        if(previous != null && sameSegments(segments, previous.segments)) {
+            this.N = previous.N;
+            this.maxDocId = previous.maxDocId;
+            this.lengths = previous.lengths;
+            return;
+        }
+        long n = 0;
+        int max = 0;
+        for(Segment s : segments) {
+            n += s.getIndex().getN();
+            max = Math.max(max, s.getIndex().getMaxDocId());
+        }
+        this.N = n;
+        this.maxDocId = max;
+        this.lengths = lengths(segments, n, max);
+    }
+
+    private static boolean sameSegments(Segment[] a, Segment[] b) {
+        if(a.length != b.length) return false;
+        for(int i = 0; i < a.length; i++)
+            if(a[i].getIndex() != b[i].getIndex()) return false;
+        return true;
+    }
+
+    /**
+     * Squared vector length of every live docid. The segments' dictionaries are walked side by
+     * side in term order, so a term's global df is summed from the segments holding it right
+     * before its postings are read, in one pass and without a map of every term.
+     */
+    private static double[] lengths(Segment[] segments, long N, int maxDocId) {
+        double[] lengths = new double[maxDocId + 1];
+        PostingIndex.Terms[] terms = new PostingIndex.Terms[segments.length]; //null once exhausted
+        for(int i = 0; i < segments.length; i++) {
+            terms[i] = segments[i].getIndex().terms(0);
+            if(!terms[i].next()) terms[i] = null;
+        }
+        boolean[] holds = new boolean[segments.length];
+        while(true) {
+            PostingIndex.Terms smallest = null;
+            for(PostingIndex.Terms t : terms)
+                if(t != null && (smallest == null || t.compareTo(smallest) < 0)) smallest = t;
+            if(smallest == null) return lengths;
+            int df = 0;
+            for(int i = 0; i < segments.length; i++) {
+                holds[i] = terms[i] != null && terms[i].compareTo(smallest) == 0;
+                if(holds[i]) df += segments[i].getIndex().df(terms[i].termId());
+            }
+            if(!Fields.isFieldTerm(smallest.bytes(), smallest.length())) { //field terms are not part of |d|
+                double idf = Weighting.idf(N, df);
+                for(int i = 0; i < segments.length; i++) {
+                    if(!holds[i]) continue;
+                    PostingIndex.Postings p = segments[i].getIndex().postings(terms[i].termId());
+                    while(p.next()) {
+                        if(segments[i].isDeleted(p.docid())) continue;
+                        lengths[p.docid()] += Math.pow(Weighting.weight(p.tf(), p.maxF(), idf), 2);
+                    }
+                }
+            }
+            for(int i = 0; i < segments.length; i++)
+                if(holds[i] && !terms[i].next()) terms[i] = null;
+        }
+    }
+
+    public static SegmentedIndex open(File dir) throws IOException {
+        return open(dir, null);
+    }
+
+    /**
+     * Open the segments the manifest names now. Segments previous already has open are reused,
+     * mapping and posting cache included, only their deletes are read again if they changed.
+     * A SegmentWriter removes the files a new manifest no longer names right after publishing it,
+     * so if one is gone by the time it is opened the manifest is read again.
+     * @param previous an older snapshot of the same directory, or null
+     */
+    public static SegmentedIndex open(File dir, SegmentedIndex previous) throws IOException {
+        HashMap<String, Segment> open = new HashMap<String, Segment>();
+        if(previous != null) {
+            for(Segment s : previous.segments) open.put(s.getName(), s);
+        }
+        LinkedHashMap<String, Integer> manifest = SegmentWriter.readManifest(dir);
+        while(true) {
+            try {
+                ArrayList<Segment> segments = new ArrayList<Segment>();
+                for(Map.Entry<String, Integer> e : manifest.entrySet()) {
+                    Segment old = open.get(e.getKey());
+                    int generation = e.getValue();
+                    if(old == null) segments.add(Segment.open(dir, e.getKey(), generation));
+                    else if(old.getDeletesGeneration() == generation) segments.add(old);
+                    else segments.add(new Segment(old.getName(), old.getIndex(), Segment.readDeletes(dir, old.getName(), generation), generation));
+                }
+                return new SegmentedIndex(segments.toArray(new Segment[segments.size()]), previous);
+            } catch(FileNotFoundException e) {
+                LinkedHashMap<String, Integer> current = SegmentWriter.readManifest(dir);
+                if(current.equals(manifest)) throw e;
+                manifest = current;
+            }
+        }
+    }
+
+    public long getN() { return this.N; }
+    public int getSegmentCount() { return this.segments.length; }
+
+    public List<PostingIndex> getIndexes() {
+        ArrayList<PostingIndex> indexes = new ArrayList<PostingIndex>();
+        for(Segment s : this.segments) indexes.add(s.getIndex());
+        return indexes;
+    }
+
+    /** df of the term summed over all segments **/
+    public int df(String term) {
+        int df = 0;
+        for(Segment s : this.segments) {
+            int t = s.getIndex().find(term);
+            if(t >= 0) df += s.getIndex().df(t);
+        }
+        return df;
+    }
+
+    /**
+     * Same scoring as VectorSpaceRetrievalSystem.search.
+     * @param terms unique stemmed query terms and their number of occurrences in the query
+     * @param qmaxF largest number of occurrences
+     * @param boosts query weight multiplier of each Fields term, indexed by field, 0 to leave the field out
+     * @param top gets every document that matches
+     * @return number of postings read
+     */
+    public long search(Map<String, Integer> terms, int qmaxF, double[] boosts, TopK top) {
+        ScoreAccumulator cosSims = this.accumulators.get();
+        cosSims.reset();
+        double queryLength = 0.0;
+        long postings = 0;
+        for(Map.Entry<String, Integer> e : terms.entrySet()) {
+            int df = df(e.getKey());
+            if(df == 0) continue;
+            int occurrences = e.getValue();
+            double w = Weighting.weight(occurrences, qmaxF, Weighting.idf(this.N, df));
+            queryLength += occurrences * Math.pow(w, 2);
+            postings += accumulate(e.getKey(), occurrences * w, cosSims);
+            for(int f = 1; f < Fields.COUNT; f++)
+                if(boosts[f] > 0.0) postings += accumulate(Fields.term(f, e.getKey()), boosts[f] * occurrences * w, cosSims);
+        }
+        for(int i = 0; i < cosSims.size(); i++) {
+            int docid = cosSims.docid(i);
+            top.offer(docid, cosSims.score(docid) / Math.sqrt(queryLength * this.lengths[docid]));
+        }
+        return postings;
+    }
+
+    /**
+     * add queryWeight * the global tf * idf weight of term for every live posting of it
+     * @return number of postings read, deleted ones included
+     */
+    private long accumulate(String term, double queryWeight, ScoreAccumulator cosSims) {
+        int df = 0;
+        int[] termIds = new int[this.segments.length];
+        for(int i = 0; i < this.segments.length; i++) {
+            termIds[i] = this.segments[i].getIndex().find(term);
+            if(termIds[i] >= 0) df += this.segments[i].getIndex().df(termIds[i]);
+        }
+        if(df == 0) return 0;
+        long postings = 0;
+        double idf = Weighting.idf(this.N, df);
+        for(int i = 0; i < this.segments.length; i++) {
+            if(termIds[i] < 0) continue;
+            PostingIndex.Postings p = this.segments[i].getIndex().postings(termIds[i]);
+            while(p.next()) {
+                postings++;
+                if(this.segments[i].isDeleted(p.docid())) continue;
+                cosSims.add(p.docid(), queryWeight * Weighting.weight(p.tf(), p.maxF(), idf));
+            }
+        }
+        return postings;
+    }
+}
@@ -0,0 +1,123 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, thread safe memo of surface form -> Porter stem.
+ *
+ * Text keeps repeating the same few thousand word forms, so most tokens are stemmed by
+ * a lookup here instead of running every Stemmer step again. Lookups take a char[] range,
+ * a hit allocates nothing and returns the same String every time.
+ *
+ * The table is 4-way set associative: a form can only live in the 4 slots of its set, and a
+ * miss on a full set replaces the least recently used of them, so the cache never grows past
+ * its capacity and never rehashes. Sets are guarded by a fixed array of lock stripes.
+ * Misses are stemmed outside the lock with a Stemmer per thread.
+ */
+public class StemCache {
+
+    private static final int WAYS = 4;
+    private static final int STRIPES = 64;
+
+    private final char[][] keys;
+    private final String[] stems;
+    private final String[][] fieldStems; //"field:stem" per Fields constant, made on first use
+    private final int[] hashes;
+    private final long[] used; //tick of the last hit, for LRU within a set
+    private final int setMask;
+    private final Object[] locks;
+    private final long[] ticks; //LRU clock per stripe, a set is always guarded by the same stripe
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private final ThreadLocal<Stemmer> stemmers = new ThreadLocal<Stemmer>() {
+        protected Stemmer initialValue() { return new Stemmer(); }
+    };
+
+    /**
+     * @param capacity most surface forms kept, rounded up to a power of two
+     */
+    public StemCache(int capacity) {
+        int sets = 1;
+        while(sets * WAYS < capacity) sets <<= 1;
+        this.keys = new char[sets * WAYS][];
+        this.stems = new String[sets * WAYS];
+        this.fieldStems = new String[sets * WAYS][];
+        this.hashes = new int[sets * WAYS];
+        this.used = new long[sets * WAYS];
+        this.setMask = sets - 1;
+        this.locks = new Object[STRIPES];
+        for(int i = 0; i < STRIPES; i++) this.locks[i] = new Object();
+        this.ticks = new long[STRIPES];
+    }
+
+    public String stem(char[] buffer, int offset, int length) {
+        return stem(buffer, offset, length, Fields.NONE);
+    }
+
+    /**
+     * @return the stem as the Fields term of field, e.g. title:wing, cached like the stem itself
+     */
+    public String stem(char[] buffer, int offset, int length, int field) {
+        int h = 0;
+        for(int i = 0; i < length; i++) h = 31 * h + buffer[offset + i];
+        int set = (h ^ (h >>> 16)) & this.setMask;
+        int first = set * WAYS;
+        int stripe = set & (STRIPES - 1);
+
+        synchronized(this.locks[stripe]) {
+            for(int s = first; s < first + WAYS; s++) {
+                if(this.hashes[s] == h && equal(this.keys[s], buffer, offset, length)) {
+                    this.used[s] = ++this.ticks[stripe];
+                    this.hits.increment();
+                    return field == Fields.NONE ? this.stems[s] : fieldStem(s, field);
+                }
+            }
+        }
+
+        this.misses.increment();
+        Stemmer stemmer = this.stemmers.get();
+        stemmer.reset();
+        stemmer.add(buffer, offset, length);
+        stemmer.stem();
+        String stem = new String(stemmer.getResultBuffer(), 0, stemmer.getResultLength());
+        char[] key = new char[length];
+        System.arraycopy(buffer, offset, key, 0, length);
+
+        synchronized(this.locks[stripe]) {
+            int victim = first;
+            for(int s = first; s < first + WAYS; s++) {
+                if(this.keys[s] == null) { victim = s; break; }
+                if(this.used[s] < this.used[victim]) victim = s;
+            }
+            this.keys[victim] = key;
+            this.stems[victim] = stem;
+            this.fieldStems[victim] = null;
+            this.hashes[victim] = h;
+            this.used[victim] = ++this.ticks[stripe];
+            return field == Fields.NONE ? stem : fieldStem(victim, field);
+        }
+    }
+
+    /** call with the slot's lock held **/
+    private String fieldStem(int slot, int field) {
+        String[] terms = this.fieldStems[slot];
+        if(terms == null) terms = this.fieldStems[slot] = new String[Fields.COUNT];
+        if(terms[field] == null) terms[field] = Fields.term(field, this.stems[slot]);
+        return terms[field];
+    }
+
+    public String stem(String word) {
+        return stem(word.toCharArray(), 0, word.length());
+    }
+
+    public long getHits() { return this.hits.sum(); }
+    public long getMisses() { return this.misses.sum(); }
+    public int getCapacity() { return this.keys.length; }
+
+    private static boolean equal(char[] key, char[] buffer, int offset, int length) {
+        if(key == null || key.length != length) return false;
+        for(int i = 0; i < length; i++)
+            if(key[i] != buffer[offset + i]) return false;
+        return true;
+    }
+}
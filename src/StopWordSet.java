@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read-only set of stop words that can be probed with a range of a char[] buffer,
+ * so the tokenizer can test a token without making a String out of it.
+ *
+ * All words live in one char[]; an open addressing table of word numbers, sized to a power
+ * of two at most half full, points into it. A lookup is a hash over the range and a
+ * few char comparisons, no allocation.
+ */
+public class StopWordSet {
+
+    private final char[] chars;
+    private final int[] starts; //word i is chars[starts[i], starts[i + 1])
+    private final int[] table; //word number + 1, 0 for an empty slot
+    private final int mask;
+
+    public StopWordSet(List<String> words) {
+        ArrayList<String> unique = new ArrayList<String>();
+        int capacity = 2;
+        while(capacity < 2 * words.size()) capacity <<= 1;
+        this.table = new int[capacity];
+        this.mask = capacity - 1;
+
+        int total = 0;
+        for(String w : words) total += w.trim().length();
+        this.chars = new char[total];
+        this.starts = new int[words.size() + 1];
+
+        int position = 0;
+        for(String w : words) {
+            w = w.trim();
+            if(w.isEmpty()) continue;
+            w.getChars(0, w.length(), this.chars, position);
+            if(contains(this.chars, position, w.length())) continue; //duplicate line
+            int n = unique.size();
+            unique.add(w);
+            this.starts[n] = position;
+            this.starts[n + 1] = position + w.length();
+            int slot = hash(this.chars, position, w.length()) & this.mask;
+            while(this.table[slot] != 0) slot = (slot + 1) & this.mask;
+            this.table[slot] = n + 1;
+            position += w.length();
+        }
+    }
+
+    /**
+     * one word per line, as in input/stopwords_smaller_list.txt
+     */
+    public static StopWordSet load(String path) throws IOException {
+        return new StopWordSet(Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8));
+    }
+
+    public boolean contains(char[] buffer, int offset, int length) {
+        int slot = hash(buffer, offset, length) & this.mask;
+        int word;
+        while((word = this.table[slot]) != 0) {
+            int start = this.starts[word - 1];
+            if(this.starts[word] - start == length && equal(buffer, offset, start, length)) return true;
+            slot = (slot + 1) & this.mask;
+        }
+        return false;
+    }
+
+    public boolean contains(String word) {
+        int length = word.length();
+        int slot = hash(word) & this.mask;
+        int w;
+        while((w = this.table[slot]) != 0) {
+            int start = this.starts[w - 1];
+            if(this.starts[w] - start == length && equal(word, start, length)) return true;
+            slot = (slot + 1) & this.mask;
+        }
+        return false;
+    }
+
+    private boolean equal(char[] buffer, int offset, int start, int length) {
+        for(int i = 0; i < length; i++)
+            if(buffer[offset + i] != this.chars[start + i]) return false;
+        return true;
+    }
+
+    private boolean equal(String word, int start, int length) {
+        for(int i = 0; i < length; i++)
+            if(word.charAt(i) != this.chars[start + i]) return false;
+        return true;
+    }
+
+    /** same as String.hashCode over the range, then spread so the low bits are usable **/
+    private static int hash(char[] buffer, int offset, int length) {
+        int h = 0;
+        for(int i = 0; i < length; i++) h = 31 * h + buffer[offset + i];
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(String word) {
+        int h = word.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,119 @@
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * (term, docid) map output key of the indexing job, a secondary sort: keys sort by term (in
+ * Text's byte order) and then by docid, while TermPartitioner and TermComparator only look at
+ * the term. So each reduce call gets one term's postings already in docid order and
+ * RawInputReducer can write them straight through.
+ *
+ * Serialized as the term Text then a vint docid, compared on those bytes without deserializing.
+ */
+public class TermDocidWritable implements WritableComparable<TermDocidWritable> {
+
+    private final Text term = new Text();
+    private int docid;
+
+    static {
+        WritableComparator.define(TermDocidWritable.class, new Comparator());
+    }
+
+    public TermDocidWritable() { }
+
+    public void set(Text term, int docid) {
+        this.term.set(term);
+        this.docid = docid;
+    }
+
+    public Text getTerm() { return this.term; }
+    public int getDocid() { return this.docid; }
+
+    public void readFields(DataInput data) throws IOException {
+        this.term.readFields(data);
+        this.docid = WritableUtils.readVInt(data);
+    }
+
+    public void write(DataOutput data) throws IOException {
+        this.term.write(data);
+        WritableUtils.writeVInt(data, this.docid);
+    }
+
+    public int compareTo(TermDocidWritable other) {
+        int c = this.term.compareTo(other.term);
+        return c != 0 ? c : (this.docid < other.docid ? -1 : (this.docid == other.docid ? 0 : 1));
+    }
+
+    public int hashCode() { return this.term.hashCode() * 31 + this.docid; }
+
+    public boolean equals(Object o) {
+        return o instanceof TermDocidWritable && compareTo((TermDocidWritable) o) == 0;
+    }
+
+    /** serialized size of a key, for the BYTES_EMITTED counter **/
+    public int getSerializedSize() {
+        return WritableUtils.getVIntSize(this.term.getLength()) + this.term.getLength() + WritableUtils.getVIntSize(this.docid);
+    }
+
+    /** length of the serialized term, its vint length prefix included **/
+    private static int termBytes(byte[] b, int s) throws IOException {
+        return WritableUtils.decodeVIntSize(b[s]) + WritableComparator.readVInt(b, s);
+    }
+
+    private static int compareTerms(byte[] b1, int s1, byte[] b2, int s2) throws IOException {
+        int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+        int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+        return WritableComparator.compareBytes(b1, s1 + n1, WritableComparator.readVInt(b1, s1), b2, s2 + n2, WritableComparator.readVInt(b2, s2));
+    }
+
+    /** sort order: term, then docid **/
+    public static class Comparator extends WritableComparator {
+
+        public Comparator() { super(TermDocidWritable.class); }
+
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            try {
+                int c = compareTerms(b1, s1, b2, s2);
+                if(c != 0) return c;
+                int d1 = WritableComparator.readVInt(b1, s1 + termBytes(b1, s1));
+                int d2 = WritableComparator.readVInt(b2, s2 + termBytes(b2, s2));
+                return d1 < d2 ? -1 : (d1 == d2 ? 0 : 1);
+            } catch(IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
+    /** grouping: every docid of a term goes to the same reduce call **/
+    public static class TermComparator extends WritableComparator {
+
+        public TermComparator() { super(TermDocidWritable.class, true); }
+
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            try {
+                return compareTerms(b1, s1, b2, s2);
+            } catch(IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        @SuppressWarnings("rawtypes")
+        public int compare(WritableComparable a, WritableComparable b) {
+            return ((TermDocidWritable) a).term.compareTo(((TermDocidWritable) b).term);
+        }
+    }
+
+    /** every docid of a term goes to the same reducer **/
+    public static class TermPartitioner extends Partitioner<TermDocidWritable, PostingWritable> {
+
+        public int getPartition(TermDocidWritable key, PostingWritable value, int partitions) {
+            return (key.term.hashCode() & Integer.MAX_VALUE) % partitions;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * (termId, tf * idf weight) pair shuffled from PostingTokenizerMapper to WeightAggregatorReducer.
+ */
+public class TermWeightWritable implements Writable {
+
+    private int termId;
+    private double weight;
+
+    public TermWeightWritable() { }
+
+    public TermWeightWritable(int termId, double weight) {
+        set(termId, weight);
+    }
+
+    public void set(int termId, double weight) {
+        this.termId = termId;
+        this.weight = weight;
+    }
+
+    public int getTermId() { return this.termId; }
+    public double getWeight() { return this.weight; }
+
+    public void readFields(DataInput data) throws IOException {
+        this.termId = data.readInt();
+        this.weight = data.readDouble();
+    }
+
+    public void write(DataOutput data) throws IOException {
+        data.writeInt(this.termId);
+        data.writeDouble(this.weight);
+    }
+}
@@ -0,0 +1,228 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache bounded by the estimated size of its values in bytes, least recently used entries
+ * evicted first, with TinyLFU admission (Einziger, Friedman and Manes, 2017): a new entry
+ * that needs room is only admitted if its key has been asked for more often than each entry
+ * it would evict. Access frequencies live in a count-min sketch of counters that saturate at 15,
+ * TinyLFU's 4 bits, and are all halved every sampleSize lookups, so it forgets old popularity
+ * and needs no per key state.
+ * That keeps a burst of one-off lookups from flushing entries that are asked for again and again.
+ *
+ * The cache is striped so query threads don't all queue on one lock: a key's hash picks one of
+ * a power of two stripes, each an independent cache with its own lock, sketch, LRU order and an
+ * equal share of the byte budget. Admission and eviction compare keys within a stripe only, and an
+ * entry larger than a stripe's share is never kept. Every operation is a hash lookup or two and
+ * a few sketch probes under the stripe's lock.
+ */
+public class TinyLfuCache<K, V> {
+
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+    private static final int MAX_STRIPES = 64;
+    private static final int MIN_STRIPE_ENTRIES = 64; //fewer stripes for a small cache, so admission still has entries to compare
+
+    private final ArrayList<Stripe> stripes;
+    private final int stripeMask;
+
+    private static class Entry<V> {
+        final V value;
+        final long bytes;
+        Entry(V value, long bytes) { this.value = value; this.bytes = bytes; }
+    }
+
+    /**
+     * @param maxBytes most bytes of values (as estimated by the caller of put) kept
+     * @param expectedEntries about how many entries fit, sizes the frequency sketches
+     */
+    public TinyLfuCache(long maxBytes, int expectedEntries) {
+        this(maxBytes, expectedEntries, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param concurrency about how many threads use the cache at once, rounded up to a power of two
+     *        stripes, less for a cache of few entries
+     */
+    public TinyLfuCache(long maxBytes, int expectedEntries, int concurrency) {
+        int count = 1;
+        while(count < concurrency && count < MAX_STRIPES && expectedEntries / (2 * count) >= MIN_STRIPE_ENTRIES) count <<= 1;
+        this.stripes = new ArrayList<Stripe>(count);
+        for(int i = 0; i < count; i++) this.stripes.add(new Stripe(maxBytes / count, expectedEntries / count));
+        this.stripeMask = count - 1;
+    }
+
+    private Stripe stripe(int h) { return this.stripes.get(h & this.stripeMask); }
+
+    /** counts as an access of key whether it is cached or not **/
+    public V get(K key) {
+        int h = spread(key.hashCode());
+        return stripe(h).get(key, h);
+    }
+
+    /**
+     * would put(key, value, bytes) keep the value, so a caller can skip building values that would be rejected
+     */
+    public boolean admits(K key, long bytes) {
+        int h = spread(key.hashCode());
+        return stripe(h).admits(h, bytes);
+    }
+
+    /**
+     * keep value under key, unless making room for it would evict an entry asked for at least as often
+     * @param bytes estimated size of value
+     */
+    public void put(K key, V value, long bytes) {
+        int h = spread(key.hashCode());
+        stripe(h).put(key, h, value, bytes);
+    }
+
+    public void clear() {
+        for(Stripe stripe : this.stripes) stripe.clear();
+    }
+
+    /**
+     * One independent TinyLFU cache, every method synchronized on it.
+     */
+    private class Stripe {
+
+        private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true); //eldest first
+        private final long maxBytes;
+        private long bytes;
+
+        private final byte[] sketch;
+        private final int sketchShift;
+        private final int sampleSize;
+        private int samples;
+
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long rejections;
+
+        Stripe(long maxBytes, int expectedEntries) {
+            this.maxBytes = maxBytes;
+            int width = 64;
+            while(width < 4 * expectedEntries && width < (1 << 24)) width <<= 1;
+            this.sketch = new byte[width];
+            this.sketchShift = 32 - Integer.numberOfTrailingZeros(width);
+            this.sampleSize = 10 * width;
+        }
+
+        synchronized V get(K key, int h) {
+            increment(h);
+            Entry<V> e = this.entries.get(key);
+            if(e == null) {
+                this.misses++;
+                return null;
+            }
+            this.hits++;
+            return e.value;
+        }
+
+        synchronized boolean admits(int h, long bytes) {
+            return bytes <= this.maxBytes && (this.bytes + bytes <= this.maxBytes || victimsColder(h, bytes));
+        }
+
+        synchronized void put(K key, int h, V value, long bytes) {
+            Entry<V> old = this.entries.remove(key);
+            if(old != null) this.bytes -= old.bytes;
+            if(bytes > this.maxBytes || (old == null && !admits(h, bytes))) { //a cached key was admitted already
+                this.rejections++;
+                return;
+            }
+            Iterator<Map.Entry<K, Entry<V>>> eldest = this.entries.entrySet().iterator();
+            while(this.bytes + bytes > this.maxBytes) {
+                this.bytes -= eldest.next().getValue().bytes;
+                eldest.remove();
+                this.evictions++;
+            }
+            this.entries.put(key, new Entry<V>(value, bytes));
+            this.bytes += bytes;
+        }
+
+        synchronized void clear() {
+            this.entries.clear();
+            this.bytes = 0;
+        }
+
+        /** true if every entry that would be evicted to fit bytes more is less popular than the key hashed to h **/
+        private boolean victimsColder(int h, long bytes) {
+            int frequency = frequency(h);
+            long free = this.maxBytes - this.bytes;
+            for(Map.Entry<K, Entry<V>> e : this.entries.entrySet()) {
+                if(free >= bytes) return true;
+                if(frequency(spread(e.getKey().hashCode())) >= frequency) return false;
+                free += e.getValue().bytes;
+            }
+            return free >= bytes;
+        }
+
+        private void increment(int h) {
+            int min = MAX_COUNT;
+            for(int seed : SEEDS) min = Math.min(min, this.sketch[slot(h, seed)]);
+            if(min < MAX_COUNT) {
+                for(int seed : SEEDS) { //conservative update, only the smallest counters grow
+                    int slot = slot(h, seed);
+                    if(this.sketch[slot] == min) this.sketch[slot]++;
+                }
+            }
+            if(++this.samples == this.sampleSize) {
+                for(int i = 0; i < this.sketch.length; i++) this.sketch[i] >>= 1;
+                this.samples = 0;
+            }
+        }
+
+        private int frequency(int h) {
+            int min = MAX_COUNT;
+            for(int seed : SEEDS) min = Math.min(min, this.sketch[slot(h, seed)]);
+            return min;
+        }
+
+        private int slot(int h, int seed) { return (h * seed) >>> this.sketchShift; }
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x7FEB352D;
+        return h ^ (h >>> 15);
+    }
+
+    public long getHits() {
+        long sum = 0;
+        for(Stripe stripe : this.stripes) synchronized(stripe) { sum += stripe.hits; }
+        return sum;
+    }
+
+    public long getMisses() {
+        long sum = 0;
+        for(Stripe stripe : this.stripes) synchronized(stripe) { sum += stripe.misses; }
+        return sum;
+    }
+
+    public long getEvictions() {
+        long sum = 0;
+        for(Stripe stripe : this.stripes) synchronized(stripe) { sum += stripe.evictions; }
+        return sum;
+    }
+
+    public long getRejections() {
+        long sum = 0;
+        for(Stripe stripe : this.stripes) synchronized(stripe) { sum += stripe.rejections; }
+        return sum;
+    }
+
+    public long getBytes() {
+        long sum = 0;
+        for(Stripe stripe : this.stripes) synchronized(stripe) { sum += stripe.bytes; }
+        return sum;
+    }
+
+    public int size() {
+        int sum = 0;
+        for(Stripe stripe : this.stripes) synchronized(stripe) { sum += stripe.entries.size(); }
+        return sum;
+    }
+}
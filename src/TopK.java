@@ -0,0 +1,113 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import javafx.util.Pair;
+
+/**
+ * Keeps the k best (docid, score) pairs seen so far in a bounded min-heap of primitives.
+ * The root is the worst result kept, so offer() is one comparison for documents that
+ * don't make the cut and O(log k) for the ones that do.
+ *
+ * Higher scores rank first, equal scores are broken by the smaller docid, so the
+ * output order is deterministic.
+ */
+public class TopK {
+
+    private final int k;
+    private final int[] docids;
+    private final double[] scores;
+    private int size;
+    private int offered;
+
+    public TopK(int k) {
+        if(k < 1) throw new IllegalArgumentException("k must be positive: " + k);
+        this.k = k;
+        this.docids = new int[k];
+        this.scores = new double[k];
+        this.size = 0;
+    }
+
+    public int getK() { return this.k; }
+    public int size() { return this.size; }
+    public boolean isFull() { return this.size == this.k; }
+    public void clear() { this.size = 0; this.offered = 0; }
+
+    /** documents offered since the last clear, whether they were kept or not **/
+    public int getOffered() { return this.offered; }
+
+    /** score a new document has to beat once the heap is full **/
+    public double threshold() {
+        return isFull() ? this.scores[0] : Double.NEGATIVE_INFINITY;
+    }
+
+    public void offer(int docid, double score) {
+        this.offered++;
+        if(this.size < this.k) {
+            this.docids[this.size] = docid;
+            this.scores[this.size] = score;
+            siftUp(this.size++);
+        } else if(worse(this.docids[0], this.scores[0], docid, score)) {
+            this.docids[0] = docid;
+            this.scores[0] = score;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Empties the heap, best result first.
+     */
+    public List<Pair<Integer, Double>> results() {
+        int n = this.size;
+        int[] d = new int[n];
+        double[] s = new double[n];
+        for(int i = n - 1; i >= 0; i--) { //popping the root yields the worst remaining result
+            d[i] = this.docids[0];
+            s[i] = this.scores[0];
+            this.size--;
+            this.docids[0] = this.docids[this.size];
+            this.scores[0] = this.scores[this.size];
+            siftDown(0);
+        }
+        ArrayList<Pair<Integer, Double>> results = new ArrayList<Pair<Integer, Double>>(n);
+        for(int i = 0; i < n; i++) results.add(new Pair<Integer, Double>(d[i], s[i]));
+        return results;
+    }
+
+    /** true if (docA, scoreA) ranks below (docB, scoreB) **/
+    private static boolean worse(int docA, double scoreA, int docB, double scoreB) {
+        if(scoreA != scoreB) return scoreA < scoreB;
+        return docA > docB;
+    }
+
+    private void siftUp(int i) {
+        int doc = this.docids[i];
+        double score = this.scores[i];
+        while(i > 0) {
+            int parent = (i - 1) >>> 1;
+            if(!worse(doc, score, this.docids[parent], this.scores[parent])) break;
+            this.docids[i] = this.docids[parent];
+            this.scores[i] = this.scores[parent];
+            i = parent;
+        }
+        this.docids[i] = doc;
+        this.scores[i] = score;
+    }
+
+    private void siftDown(int i) {
+        int doc = this.docids[i];
+        double score = this.scores[i];
+        int half = this.size >>> 1;
+        while(i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if(right < this.size && worse(this.docids[right], this.scores[right], this.docids[child], this.scores[child]))
+                child = right;
+            if(!worse(this.docids[child], this.scores[child], doc, score)) break;
+            this.docids[i] = this.docids[child];
+            this.scores[i] = this.scores[child];
+            i = child;
+        }
+        this.docids[i] = doc;
+        this.scores[i] = score;
+    }
+}
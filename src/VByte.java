@@ -0,0 +1,72 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Variable byte integer coding shared by the index writers and readers:
+ * 7 bits per byte, least significant group first, the high bit set on every byte but the last.
+ * Small numbers such as docid gaps and term frequencies usually take a single byte.
+ */
+public final class VByte {
+
+    private VByte() { }
+
+    public static void write(DataOutput out, int value) throws IOException {
+        while((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /** @return the position after the encoded value **/
+    public static int write(byte[] buffer, int position, int value) {
+        while((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    public static int size(int value) {
+        int size = 1;
+        while((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Decode the value at buffer[position[0]] and advance position[0] past it.
+     */
+    public static int read(ByteBuffer buffer, int[] position) {
+        int p = position[0];
+        byte b = buffer.get(p++);
+        int value = b & 0x7F;
+        for(int shift = 7; b < 0; shift += 7) {
+            b = buffer.get(p++);
+            value |= (b & 0x7F) << shift;
+        }
+        position[0] = p;
+        return value;
+    }
+
+    /**
+     * Decode n consecutive values starting at buffer[position] into values[offset..offset+n).
+     * @return the position after the last value
+     */
+    public static int read(ByteBuffer buffer, int position, int[] values, int offset, int n) {
+        for(int i = 0; i < n; i++) {
+            byte b = buffer.get(position++);
+            int value = b & 0x7F;
+            for(int shift = 7; b < 0; shift += 7) {
+                b = buffer.get(position++);
+                value |= (b & 0x7F) << shift;
+            }
+            values[offset + i] = value;
+        }
+        return position;
+    }
+}
@@ -1,130 +1,602 @@
+import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javafx.util.Pair;
 
 public class VectorSpaceRetrievalSystem {
 
+    public static final String DEFAULT_INDEX = "output/index.bin";
+    public static final String DEFAULT_VECTORS = "postOutput/vectors.bin";
+    public static final String DEFAULT_STOPWORDS = "input/stopwords_smaller_list.txt";
+    public static final int DEFAULT_K = 50;
+    public static final int DEFAULT_STEM_CACHE_SIZE = 16384;
+    public static final int DEFAULT_MAX_EXPANSIONS = 64;
+    public static final long DEFAULT_RESULT_CACHE_BYTES = 16L << 20;
+    public static final long DEFAULT_POSTING_CACHE_BYTES = 64L << 20;
+    public static final long DEFAULT_CHECK_INTERVAL = 1000L;
+
+    /** rough heap size of one cached result (a Pair of an Integer and a Double), and of an entry **/
+    private static final int RESULT_BYTES = 64;
+    private static final int RESULT_OVERHEAD = 160;
+
+    private final String indexPath; //null when searching a segmented index
+    private final String vectorsPath;
+    private final File segmentsDirectory; //null unless the segments were opened from a directory here
+    private volatile Snapshot index;
+    private StopWordSet stopWords;
+    private boolean pruning = true;
+    private int maxExpansions = DEFAULT_MAX_EXPANSIONS;
+    private double[] boosts = new double[Fields.COUNT]; //query weight of each field term relative to its plain term
+    private final AtomicInteger settings = new AtomicInteger(); //bumped after every change of a setting above but pruning, part of every result cache key
+    private StemCache stems = new StemCache(DEFAULT_STEM_CACHE_SIZE);
+    private final Metrics metrics = new Metrics();
+
+    private long postingCacheBytes = DEFAULT_POSTING_CACHE_BYTES;
+    private volatile TinyLfuCache<String, List<Pair<Integer, Double>>> results = resultCache(DEFAULT_RESULT_CACHE_BYTES);
+    private long checkInterval = DEFAULT_CHECK_INTERVAL;
+    private volatile long nextCheck;
+
+    /** each query thread reuses its own accumulator, it grows if a reopened index has larger docids **/
+    private final ThreadLocal<ScoreAccumulator> accumulators = new ThreadLocal<ScoreAccumulator>() {
+        protected ScoreAccumulator initialValue() { return new ScoreAccumulator(index.posting.getMaxDocId()); }
+    };
+
+    /**
+     * The index files being searched. checkForChanges opens a new Snapshot when the files change
+     * on disk, queries already running finish on the one they started with.
+     */
+    private static class Snapshot {
+        final PostingIndex posting;
+        final DocumentVectors vectors;
+        final SegmentedIndex segments; //set instead of posting and vectors when searching a segmented index
+        final MaxScoreEvaluator evaluator;
+        final long version; //of the files it was opened from
+        final int generation; //part of every result cache key, so results of an older snapshot never match
+
+        Snapshot(PostingIndex posting, DocumentVectors vectors, SegmentedIndex segments, long version, int generation) {
+            this.posting = posting;
+            this.vectors = vectors;
+            this.segments = segments;
+            this.evaluator = posting == null ? null : new MaxScoreEvaluator(posting, vectors);
+            this.version = version;
+            this.generation = generation;
+        }
+
+        List<PostingIndex> indexes() {
+            return this.segments != null ? this.segments.getIndexes() : Collections.singletonList(this.posting);
+        }
+    }
+
+    /**
+     * Loads the index, document vector lengths and stop words once, after which search can be
+     * called any number of times (and from any number of threads, nothing is mutated).
+     * If the index files are replaced (written elsewhere and renamed over these) they are reopened,
+     * see setCheckInterval.
+     */
+    public VectorSpaceRetrievalSystem(String indexPath, String vectorsPath, String stopWordsPath) throws IOException {
+        this(indexPath, vectorsPath, null, null, stopWordsPath);
+    }
+
+    /**
+     * search a segmented index directory written by SegmentWriter, reopened when the SegmentWriter changes it
+     */
+    public VectorSpaceRetrievalSystem(File segmentsDirectory, String stopWordsPath) throws IOException {
+        this(null, null, segmentsDirectory, null, stopWordsPath);
+    }
+
+    /**
+     * search a snapshot of a segmented index, never reopened
+     */
+    public VectorSpaceRetrievalSystem(SegmentedIndex segments, String stopWordsPath) throws IOException {
+        this(null, null, null, segments, stopWordsPath);
+    }
+
+    private VectorSpaceRetrievalSystem(String indexPath, String vectorsPath, File segmentsDirectory, SegmentedIndex segments,
+                                       String stopWordsPath) throws IOException {
+        this.indexPath = indexPath;
+        this.vectorsPath = vectorsPath;
+        this.segmentsDirectory = segmentsDirectory;
+        this.stopWords = StopWordSet.load(stopWordsPath);
+        this.index = segments != null ? new Snapshot(null, null, segments, 0L, 0) : open(version(), null);
+        this.nextCheck = System.currentTimeMillis() + this.checkInterval;
+        addGauges();
+    }
+
+    /**
+     * @param previous the snapshot being replaced, a segmented index reuses the segments it still has
+     */
+    private Snapshot open(long version, Snapshot previous) throws IOException {
+        long start = System.nanoTime();
+        int generation = previous == null ? 0 : previous.generation + 1;
+        Snapshot snapshot = this.indexPath != null
+                ? new Snapshot(PostingIndex.open(this.indexPath), DocumentVectors.open(this.vectorsPath), null, version, generation) //only the vector lengths are read up front
+                : new Snapshot(null, null, SegmentedIndex.open(this.segmentsDirectory, previous == null ? null : previous.segments), version, generation);
+        setPostingCaches(snapshot, false);
+        this.metrics.gauge("index.load.ms", (System.nanoTime() - start) / 1e6);
+        return snapshot;
+    }
+
+    /**
+     * the posting cache is split evenly between the segments
+     * @param resize false leaves the caches of segments reused from an older snapshot as they are
+     */
+    private void setPostingCaches(Snapshot snapshot, boolean resize) {
+        List<PostingIndex> indexes = snapshot.indexes();
+        for(PostingIndex index : indexes)
+            if(resize || index.getPostingCache() == null) index.setPostingCache(this.postingCacheBytes / indexes.size());
+    }
+
+    /**
+     * sizes and modification times of the files a Snapshot is opened from: the index and vector
+     * files, or the manifest of a segmented index (every change publishes a new one). 0 if there are none to watch.
+     */
+    private long version() {
+        ArrayList<File> files = new ArrayList<File>();
+        if(this.indexPath != null) {
+            files.add(new File(this.indexPath));
+            files.add(new File(this.vectorsPath));
+        } else if(this.segmentsDirectory != null) {
+            files.add(new File(this.segmentsDirectory, SegmentWriter.MANIFEST));
+        } else {
+            return 0L;
+        }
+        long version = 1L;
+        for(File f : files) version = 31 * (31 * (31 * version + f.getName().hashCode()) + f.length()) + f.lastModified();
+        return version;
+    }
+
+    /**
+     * Reopen the index if its files changed, at most once every check interval. The query
+     * that finds the change pays for the reopen; until then the old snapshot keeps being searched,
+     * and so it is if the new files can't be opened (e.g. caught half written), retried next interval.
+     */
+    private void checkForChanges() {
+        long now = System.currentTimeMillis();
+        if(this.checkInterval < 0 || now < this.nextCheck) return;
+        synchronized(this) {
+            if(now < this.nextCheck) return;
+            this.nextCheck = now + this.checkInterval;
+            long version = version();
+            Snapshot current = this.index;
+            if(version == current.version) return;
+            try {
+                this.index = open(version, current);
+                this.metrics.counter("index.reloads").increment();
+                clearResults(); //their keys have the old generation, they would only take up room
+            } catch(IOException e) {
+                System.err.println("Index files changed but could not be reopened: " + e.getMessage());
+            }
+        }
+    }
+
+    private static TinyLfuCache<String, List<Pair<Integer, Double>>> resultCache(long maxBytes) {
+        if(maxBytes <= 0) return null;
+        return new TinyLfuCache<String, List<Pair<Integer, Double>>>(maxBytes, (int) Math.min(1 << 22, maxBytes / (RESULT_BYTES * DEFAULT_K)));
+    }
+
+    private void clearResults() {
+        TinyLfuCache<String, List<Pair<Integer, Double>>> cache = this.results;
+        if(cache != null) cache.clear();
+    }
+
+    private void addGauges() {
+        this.metrics.gauge("index.documents", new Metrics.Gauge() {
+            public double value() { return index.segments != null ? index.segments.getN() : index.vectors.getDocumentCount(); }
+        });
+        if(this.index.segments != null) {
+            this.metrics.gauge("index.segments", new Metrics.Gauge() {
+                public double value() { return index.segments.getSegmentCount(); }
+            });
+        } else {
+            this.metrics.gauge("index.terms", new Metrics.Gauge() {
+                public double value() { return index.posting.getTermCount(); }
+            });
+        }
+        this.metrics.gauge("stemcache.hits", new Metrics.Gauge() {
+            public double value() { return stems.getHits(); }
+        });
+        this.metrics.gauge("stemcache.misses", new Metrics.Gauge() {
+            public double value() { return stems.getMisses(); }
+        });
+        this.metrics.gauge("stemcache.hitrate", new Metrics.Gauge() {
+            public double value() { return rate(stems.getHits(), stems.getMisses()); }
+        });
+        addCacheGauges("resultcache", false);
+        addCacheGauges("postingcache", true);
+    }
+
+    /**
+     * hits, misses, hitrate, bytes, entries, evictions and rejections of the result cache,
+     * or summed over the posting caches of every index being searched
+     */
+    private void addCacheGauges(String prefix, final boolean postings) {
+        String[] names = {"hits", "misses", "hitrate", "bytes", "entries", "evictions", "rejections"};
+        for(int i = 0; i < names.length; i++) {
+            final int stat = i;
+            this.metrics.gauge(prefix + "." + names[i], new Metrics.Gauge() {
+                public double value() {
+                    long[] sums = new long[7];
+                    if(postings) {
+                        for(PostingIndex p : index.indexes()) add(p.getPostingCache(), sums);
+                    } else {
+                        add(results, sums);
+                    }
+                    return stat == 2 ? rate(sums[0], sums[1]) : sums[stat];
+                }
+            });
+        }
+    }
+
+    private static void add(TinyLfuCache<?, ?> cache, long[] sums) {
+        if(cache == null) return;
+        sums[0] += cache.getHits();
+        sums[1] += cache.getMisses();
+        sums[3] += cache.getBytes();
+        sums[4] += cache.size();
+        sums[5] += cache.getEvictions();
+        sums[6] += cache.getRejections();
+    }
+
+    private static double rate(long hits, long misses) {
+        return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * false scores every posting of every query term (term-at-a-time) instead of using MaxScore,
+     * the results are the same. A segmented index is always scored term-at-a-time, see SegmentedIndex.
+     */
+    public void setPruning(boolean pruning) { this.pruning = pruning; }
+
+    /** most index terms a single wildcard word expands to **/
+    public void setMaxExpansions(int maxExpansions) {
+        this.maxExpansions = maxExpansions;
+        this.settings.incrementAndGet();
+        clearResults(); //their keys have the old settings, they would only take up room
+    }
+
+    /**
+     * Also match every query term in a field (Fields.TITLE, ...), scoring a document's
+     * field term with boost times the query weight of the plain term. 0, the default, leaves it out.
+     */
+    public void setBoost(int field, double boost) {
+        this.boosts[field] = boost;
+        this.settings.incrementAndGet();
+        clearResults(); //their keys have the old settings, they would only take up room
+    }
+
+    /**
+     * Most bytes (estimated) of result lists kept, keyed by the stemmed query and k, 0 for no result cache.
+     * Keys include the index generation and the settings generation, so a result scored before the
+     * index was reopened or a setting that changes results was changed never matches a later query,
+     * even if that search was still running when the change was made.
+     */
+    public void setResultCacheSize(long maxBytes) { this.results = resultCache(maxBytes); }
+
+    /**
+     * most bytes of decoded posting lists kept, split between the segments of a segmented index, 0 for none.
+     * Only lists of at least a whole block are cached, short ones decode in no time.
+     */
+    public void setPostingCacheSize(long maxBytes) {
+        this.postingCacheBytes = maxBytes;
+        setPostingCaches(this.index, true);
+    }
+
+    /**
+     * How often (in ms) the index files are checked for changes, negative never checks.
+     * Replace index files by renaming a new file over them (as SegmentWriter does), writing
+     * over the file being searched in place is not safe: it is memory mapped.
+     */
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+        this.nextCheck = System.currentTimeMillis() + Math.max(checkInterval, 0);
+    }
+
+    public StemCache getStemCache() { return this.stems; }
+    public PostingIndex getIndex() { return this.index.posting; }
+    public DocumentVectors getVectors() { return this.index.vectors; }
+
+    /**
+     * index.load.ms (not for a SegmentedIndex, which the caller opens), index sizes, index.reloads,
+     * the stem, result and posting cache hit rates and sizes, query.wildcard.terms (terms wildcard words expanded to) and per query histograms of
+     * query.latency.ns, query.postings (postings read) and query.documents (documents scored,
+     * the accumulator size when scoring term-at-a-time)
+     */
+    public Metrics getMetrics() { return this.metrics; }
+
+    /**
+     * usage: VectorSpaceRetrievalSystem [-index file] [-vectors file] [-segments dir] [-stopwords file] [-k n] [-exhaustive]
+     *             [-expansions n] [-boost field=weight ...] [-threads n] [-metrics file]
+     *             [-resultcache mb] [-postingcache mb] [-check ms]
+     *             (query | -server | -port n | -batch queries [-run file] [-tag name])
+     *
+     * -server answers one query per line on stdin, -port does the same over a local socket,
+     * each result list is terminated by an empty line.
+     * -batch runs a whole query file on -threads workers and writes a TREC run to -run (default stdout).
+     * -segments searches a SegmentWriter directory instead of -index and -vectors, always
+     * term-at-a-time, so -exhaustive makes no difference there.
+     * Query words with * or ? are expanded to at most -expansions index terms each.
+     * -boost title=2 also scores title matches, at twice the weight of a match anywhere in the document.
+     * -metrics writes getMetrics() as JSON to the file ("-" for stdout) once the queries are done,
+     * the servers also answer a "#metrics" (or "#metrics json") line with them.
+     * -resultcache and -postingcache size the caches in MB (0 turns one off), -check is how often
+     * the index files are checked for changes (-1 never).
+     */
     public static void main(String[] args) throws Exception {
 
-        HashMap<String, String> posting = new HashMap<String, String>();
-        HashMap<Integer, Double> docLengths = new HashMap<Integer, Double>();
-        HashMap<Integer, ArrayList<Double>> docWeights = new HashMap<Integer, ArrayList<Double>>();
+        String indexPath = DEFAULT_INDEX;
+        String vectorsPath = DEFAULT_VECTORS;
+        String segmentsPath = null;
+        String stopWordsPath = DEFAULT_STOPWORDS;
+        String query = null;
+        boolean server = false;
+        int port = -1;
+        int k = DEFAULT_K;
+        boolean exhaustive = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int maxExpansions = DEFAULT_MAX_EXPANSIONS;
+        String batch = null;
+        String run = "-";
+        String tag = "vsrs";
+        String metrics = null;
+        long resultCache = DEFAULT_RESULT_CACHE_BYTES;
+        long postingCache = DEFAULT_POSTING_CACHE_BYTES;
+        long checkInterval = DEFAULT_CHECK_INTERVAL;
+        ArrayList<String> boosts = new ArrayList<String>();
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-index") && i + 1 < args.length) indexPath = args[++i];
+            else if(args[i].equals("-vectors") && i + 1 < args.length) vectorsPath = args[++i];
+            else if(args[i].equals("-segments") && i + 1 < args.length) segmentsPath = args[++i];
+            else if(args[i].equals("-stopwords") && i + 1 < args.length) stopWordsPath = args[++i];
+            else if(args[i].equals("-server")) server = true;
+            else if(args[i].equals("-exhaustive")) exhaustive = true;
+            else if(args[i].equals("-port") && i + 1 < args.length) port = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-k") && i + 1 < args.length) k = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-expansions") && i + 1 < args.length) maxExpansions = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-threads") && i + 1 < args.length) threads = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-batch") && i + 1 < args.length) batch = args[++i];
+            else if(args[i].equals("-run") && i + 1 < args.length) run = args[++i];
+            else if(args[i].equals("-tag") && i + 1 < args.length) tag = args[++i];
+            else if(args[i].equals("-boost") && i + 1 < args.length) boosts.add(args[++i]);
+            else if(args[i].equals("-metrics") && i + 1 < args.length) metrics = args[++i];
+            else if(args[i].equals("-resultcache") && i + 1 < args.length) resultCache = Long.parseLong(args[++i]) << 20;
+            else if(args[i].equals("-postingcache") && i + 1 < args.length) postingCache = Long.parseLong(args[++i]) << 20;
+            else if(args[i].equals("-check") && i + 1 < args.length) checkInterval = Long.parseLong(args[++i]);
+            else query = args[i];
+        }
 
-        String query = args[0];
-        if(query == null) {
+        if(query == null && !server && port < 0 && batch == null) {
             System.err.println("No query string defined.");
             System.exit(1);
         }
         //else
-        List<String> rawPosting = Files.readAllLines(Paths.get("/Users/chaneylc/IdeaProjects/Hadoop/output/part-r-00000"));
-        List<String> documentLengths = Files.readAllLines(Paths.get("/Users/chaneylc/IdeaProjects/Hadoop/postOutput/part-r-00000"));
-        List<String> stopWords = Files.readAllLines(Paths.get("/Users/chaneylc/IdeaProjects/Hadoop/input/stopwords_smaller_list.txt"));
+        VectorSpaceRetrievalSystem vsrs = segmentsPath != null
+                ? new VectorSpaceRetrievalSystem(new File(segmentsPath), stopWordsPath)
+                : new VectorSpaceRetrievalSystem(indexPath, vectorsPath, stopWordsPath);
+        vsrs.setPruning(!exhaustive);
+        vsrs.setResultCacheSize(resultCache);
+        vsrs.setPostingCacheSize(postingCache);
+        vsrs.setCheckInterval(checkInterval);
+        vsrs.setMaxExpansions(maxExpansions);
+        for(String boost : boosts) {
+            int split = boost.indexOf('=');
+            int field = split > 0 ? Fields.field(boost.substring(0, split)) : -1;
+            if(field < 0) {
+                System.err.println("Unknown field boost: " + boost);
+                System.exit(1);
+            }
+            vsrs.setBoost(field, Double.parseDouble(boost.substring(split + 1)));
+        }
 
-        /**
-         * read document weight vector and vector length from file
-         */
-        for(String s : documentLengths) {
-            StringTokenizer st = new StringTokenizer(s, "\t ");
-            Integer docid = Integer.parseInt(st.nextToken());
-            Double length = Double.parseDouble(st.nextToken());
-            ArrayList<Double> v = new ArrayList<Double>();
-            while(st.hasMoreTokens())
-                v.add(Double.parseDouble(st.nextToken()));
-            docWeights.put(docid, v);
-            docLengths.put(docid, length);
+        if(batch != null) {
+            new BatchSearcher(vsrs, k, threads).run(batch, run, tag);
+        } else if(port >= 0) {
+            new QueryServer(vsrs, k, threads).serve(port);
+        } else if(server) {
+            new QueryServer(vsrs, k, threads).serve(System.in, System.out);
+        } else {
+            for(Pair<Integer, Double> result : vsrs.search(query, k))
+                System.out.println(result.getKey() + " : " + result.getValue());
         }
+        if(metrics != null) vsrs.getMetrics().write(metrics);
+    }
+
+    public List<Pair<Integer, Double>> search(String query) {
+        return search(query, DEFAULT_K);
+    }
+
+    /**
+     * @return the k highest cosine similarities, best first, ties broken by the smaller docid
+     */
+    public List<Pair<Integer, Double>> search(String query, int k) {
+        checkForChanges();
+        long start = System.nanoTime();
+        Snapshot index = this.index; //the same files for the whole query, even if they are reopened meanwhile
 
         /**
-         * read posting input from file
+         * Split the input query, stem the input, count # of tokens
+         * Wildcard words are not stemmed, they are expanded to index terms when the query is scored.
          */
-        for(String s : rawPosting) {
-            StringTokenizer st = new StringTokenizer(s, "\t");
-            String term = st.nextToken();
-            posting.put(term, st.nextToken());
+        ArrayList<String> words = new ArrayList<String>();
+        ArrayList<String> wildcards = new ArrayList<String>();
+        for(String word : normalize(query).split(" ")) {
+            if(WildcardQuery.isWildcard(word)) wildcards.add(word);
+            else words.add(word);
         }
+        String[] terms = stemQuery(words.toArray(new String[words.size()]), this.stopWords, this.stems);
+
+        /** queries that differ only in case, punctuation, stop words or word forms share a cache entry **/
+        TinyLfuCache<String, List<Pair<Integer, Double>>> cache = this.results;
+        String key = null;
+        if(cache != null) {
+            StringBuilder b = new StringBuilder().append(index.generation).append('\t').append(this.settings.get()).append('\t').append(k);
+            for(String w : wildcards) b.append('\t').append(w);
+            b.append("\t\t");
+            for(String t : terms) b.append(t).append(' ');
+            key = b.toString();
+            List<Pair<Integer, Double>> cached = cache.get(key);
+            if(cached != null) {
+                this.metrics.histogram("query.latency.ns").record(System.nanoTime() - start);
+                return new ArrayList<Pair<Integer, Double>>(cached);
+            }
+        }
+
+        TopK top = new TopK(k);
+        long postings = score(index, wildcards, terms, top);
+        this.metrics.histogram("query.postings").record(postings);
+        this.metrics.histogram("query.documents").record(top.getOffered());
+        List<Pair<Integer, Double>> results = top.results();
+        if(cache != null)
+            cache.put(key, new ArrayList<Pair<Integer, Double>>(results), 2L * key.length() + RESULT_OVERHEAD + RESULT_BYTES * results.size());
+        this.metrics.histogram("query.latency.ns").record(System.nanoTime() - start);
+        return results;
+    }
+
+    /**
+     * offer every matching document to top
+     * @return number of postings read
+     */
+    private long score(Snapshot index, List<String> wildcards, String[] terms, TopK top) {
 
         /**
-         * Split the input query, stem the input, count # of tokens
          * calculate query magnitude and vector values: f/max(f) * idf
+         * each term a wildcard word expands to counts as one query term.
          */
-        HashMap<Integer, Double> cosSims = new HashMap<Integer, Double>();
-        String[] terms = stemQuery(query.split(" "), stopWords);
-        Integer N = docLengths.size();
-        ArrayList<Double> queryVector = new ArrayList<Double>();
-        Double queryLength = 0.0;
-        for(String s : terms) {
-            Double occurrences = 0.0;
-            HashMap<String, Double> uniqTerms = new HashMap<String, Double>();
-            for(String t : terms) {
-                if(uniqTerms.containsKey(t)) {
-                    uniqTerms.put(t, uniqTerms.get(t) + 1);
-                } else {
-                    uniqTerms.put(t, 1.0);
-                }
-                if(t.equals(s)) occurrences++;
+        if(!wildcards.isEmpty()) {
+            ArrayList<String> expanded = new ArrayList<String>();
+            for(String word : wildcards) expand(index, word, expanded);
+            if(!expanded.isEmpty()) {
+                this.metrics.counter("query.wildcard.terms").add(expanded.size());
+                expanded.addAll(Arrays.asList(terms));
+                terms = expanded.toArray(new String[expanded.size()]);
             }
-            Double qmaxF = 0.0;
-            for(String t : uniqTerms.keySet()) {
-                if(uniqTerms.get(t) > qmaxF) qmaxF = uniqTerms.get(t);
+        }
+        LinkedHashMap<String, Integer> uniqTerms = countTerms(terms);
+        int qmaxF = uniqTerms.isEmpty() ? 0 : Collections.max(uniqTerms.values());
+
+        if(index.segments != null) return index.segments.search(uniqTerms, qmaxF, this.boosts, top);
+
+        /**
+         * idf and the document side tf * idf weights were computed when the index was written.
+         * A term repeated in the query is scored once per occurrence, so its weight is scaled by its count.
+         * Boosted field terms are extra query terms with a scaled copy of the plain term's weight,
+         * they are not part of |q| (nor of |d|), so without boosts the scores are plain cosines.
+         */
+        int n = 0;
+        int[] termIds = new int[uniqTerms.size() * Fields.COUNT];
+        double[] queryWeights = new double[uniqTerms.size() * Fields.COUNT];
+        double queryLength = 0.0;
+        for(Map.Entry<String, Integer> e : uniqTerms.entrySet()) {
+            int termId = index.posting.find(e.getKey());
+            if(termId < 0) continue;
+            int occurrences = e.getValue();
+            double w = Weighting.weight(occurrences, qmaxF, index.posting.idf(termId));
+            termIds[n] = termId;
+            queryWeights[n++] = occurrences * w;
+            queryLength += occurrences * Math.pow(w, 2);
+            for(int f = 1; f < Fields.COUNT; f++) {
+                if(this.boosts[f] <= 0.0) continue;
+                int fieldTermId = index.posting.find(Fields.term(f, e.getKey()));
+                if(fieldTermId < 0) continue;
+                termIds[n] = fieldTermId;
+                queryWeights[n++] = this.boosts[f] * occurrences * w;
             }
-            if(posting.containsKey(s)) {
-                String p = posting.get(s);
-                Integer qdf = calculateDf(p);
-                /**
-                 * should not be size of uniqTerms
-                 */
-                Double qidf = (Math.log10(N / qdf) / Math.log10(2));
-                Double w = (occurrences / qmaxF) * qidf;
-                StringTokenizer st = new StringTokenizer(p, "\t ");
-                Integer docdf = Integer.parseInt(st.nextToken());
-                while(st.hasMoreTokens()) {
-                    Integer docid = Integer.parseInt(st.nextToken());
-                    Integer maxF = Integer.parseInt(st.nextToken());
-                    Integer f = Integer.parseInt(st.nextToken());
-                    Double idf = (Math.log10(N / docdf) / Math.log10(2));
-                    Double tf = f.doubleValue() / maxF.doubleValue();
-                    if(cosSims.containsKey(docid)) {
-                        Double currentVal = cosSims.get(docid);
-                        cosSims.put(docid, currentVal + w * tf * idf);
-                    } else {
-                        cosSims.put(docid, w * tf * idf);
-                    }
+        }
+
+        if(n == 0) return 0;
+
+        long postings = 0;
+        if(this.pruning) {
+            postings = index.evaluator.evaluate(termIds, queryWeights, n, queryLength, top);
+        } else {
+            ScoreAccumulator cosSims = this.accumulators.get();
+            cosSims.reset();
+            for(int i = 0; i < n; i++) {
+                PostingIndex.Postings p = index.posting.postings(termIds[i]);
+                while(p.next()) {
+                    cosSims.add(p.docid(), queryWeights[i] * p.weight());
+                    postings++;
                 }
-                queryLength += Math.pow(w, 2);
+            }
+            for(int i = 0; i < cosSims.size(); i++) {
+                int docid = cosSims.docid(i);
+                top.offer(docid, cosSims.score(docid) / Math.sqrt(queryLength * index.vectors.length(docid)));
             }
         }
+        return postings;
+    }
 
-        for(Integer docid : cosSims.keySet()) {
-            Double currentVal = cosSims.get(docid);
-            cosSims.put(docid, currentVal / Math.sqrt(queryLength * docLengths.get(docid)));
+    /**
+     * add the index terms matching a wildcard word, at most maxExpansions of them
+     */
+    private void expand(Snapshot index, String word, List<String> terms) {
+        WildcardQuery wildcard = new WildcardQuery(word);
+        if(index.segments == null) {
+            wildcard.expand(index.posting, this.maxExpansions, terms);
+        } else {
+            TreeSet<String> union = new TreeSet<String>(); //the first maxExpansions terms over all segments
+            for(PostingIndex segment : index.segments.getIndexes()) {
+                wildcard.expand(segment, this.maxExpansions, union);
+                while(union.size() > this.maxExpansions) union.pollLast();
+            }
+            terms.addAll(union);
         }
+    }
 
-        Double[] values = cosSims.values().toArray(new Double[]{});
-        Arrays.sort(values);
-        for(int i = values.length - 1; i > values.length - 50; i = i - 1) {
-            for(Integer docid : cosSims.keySet()) {
-                if(cosSims.get(docid) == values[i]) {
-                    System.out.println(docid + " : " + values[i]);
-                }
+    /**
+     * Tokenize a query like a document: lower cased and split on white space, digits and most
+     * punctuation by SGMLTokenizer. Wildcard words are kept whole (* and ? are tokenizer delimiters),
+     * only lower cased and stripped of surrounding punctuation. Every entry point searches through
+     * this, so the CLI, the servers and batch runs all see the same terms.
+     * @return the words joined by single spaces
+     */
+    public static String normalize(String query) {
+        SGMLTokenizer tokenizer = new SGMLTokenizer();
+        StringBuilder normalized = new StringBuilder();
+        for(String word : query.trim().split("\\s+")) {
+            if(WildcardQuery.isWildcard(word)) {
+                int start = 0, end = word.length();
+                while(start < end && isPunctuation(word.charAt(start))) start++;
+                while(end > start && isPunctuation(word.charAt(end - 1))) end--;
+                if(normalized.length() > 0) normalized.append(' ');
+                normalized.append(word.substring(start, end).toLowerCase(Locale.ROOT));
+                continue;
+            }
+            byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+            tokenizer.reset(bytes, bytes.length);
+            while(tokenizer.nextTerm()) {
+                if(normalized.length() > 0) normalized.append(' ');
+                normalized.append(tokenizer.termBuffer(), 0, tokenizer.termLength());
             }
         }
+        return normalized.toString();
+    }
+
+    private static boolean isPunctuation(char c) {
+        return c != '*' && c != '?' && SGMLTokenizer.isDelimiter(c);
+    }
+
+    /**
+     * @return the unique terms in query order with their number of occurrences
+     */
+    public static LinkedHashMap<String, Integer> countTerms(String[] terms) {
+        LinkedHashMap<String, Integer> uniqTerms = new LinkedHashMap<String, Integer>();
+        for(String t : terms) {
+            Integer occurrences = uniqTerms.get(t);
+            uniqTerms.put(t, occurrences == null ? 1 : occurrences + 1);
+        }
+        return uniqTerms;
     }
 
-    public static String[] stemQuery(String[] terms, List<String> stopWords) {
+    public static String[] stemQuery(String[] terms, StopWordSet stopWords, StemCache stems) {
         ArrayList<String> result = new ArrayList<String>();
         for(String s : terms) {
-            Stemmer stem = new Stemmer();
-            stem.add(s.toCharArray(), s.length());
-            stem.stem();
-            String r = stem.toString();
+            String r = stems.stem(s);
             if(r.length() > 2 && !stopWords.contains(r)) result.add(r);
         }
         return result.toArray(new String[]{});
     }
-
-    public static Integer calculateDf(String s) {
-        StringTokenizer st = new StringTokenizer(s, " ");
-        return Integer.parseInt(st.nextToken()); // get saved df
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,24 @@
+/**
+ * The tf-idf weighting shared by the indexing jobs, the index writer and the searcher,
+ * so every stage computes exactly the same weights.
+ *
+ * idf = log2(N / df), tf = f / max(f) where max(f) is the largest term frequency in the document
+ */
+public final class Weighting {
+
+    private static final double LOG2 = Math.log10(2.0);
+
+    private Weighting() { }
+
+    public static double idf(long N, long df) {
+        return Math.log10((double) N / (double) df) / LOG2;
+    }
+
+    public static double tf(double f, double maxF) {
+        return f / maxF;
+    }
+
+    public static double weight(double f, double maxF, double idf) {
+        return tf(f, maxF) * idf;
+    }
+}
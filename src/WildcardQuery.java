@@ -0,0 +1,82 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * A query word with wildcards, '*' for any run of characters and '?' for exactly one,
+ * e.g. aero* or wa?e. Words are not stemmed, they are matched against the indexed stems.
+ *
+ * Expansion only walks the dictionary range sharing the pattern's literal prefix (found with
+ * PostingIndex.prefixRange), so aero* touches the aero... terms and nothing else. Only a
+ * leading wildcard needs a scan of the whole dictionary. Matching runs on the UTF-8 bytes
+ * the Terms cursor decodes into, so rejected terms are never turned into Strings.
+ */
+public class WildcardQuery {
+
+    private final byte[] pattern;
+    private final String prefix;
+    private final boolean fielded; //title:aero* may match field terms, other patterns never do
+
+    public WildcardQuery(String pattern) {
+        this.pattern = pattern.getBytes(StandardCharsets.UTF_8);
+        int literal = 0;
+        while(literal < pattern.length() && pattern.charAt(literal) != '*' && pattern.charAt(literal) != '?') literal++;
+        this.prefix = pattern.substring(0, literal);
+        this.fielded = pattern.indexOf(Fields.SEPARATOR) >= 0;
+    }
+
+    public static boolean isWildcard(String word) {
+        return word.indexOf('*') >= 0 || word.indexOf('?') >= 0;
+    }
+
+    /**
+     * add up to max matching terms of the index to terms, in dictionary order
+     * @return the number of terms added
+     */
+    public int expand(PostingIndex index, int max, Collection<String> terms) {
+        int[] range = index.prefixRange(this.prefix);
+        PostingIndex.Terms cursor = index.terms(range[0]);
+        int added = 0;
+        while(added < max && cursor.next() && cursor.termId() < range[1]) {
+            if(!this.fielded && Fields.isFieldTerm(cursor.bytes(), cursor.length())) continue;
+            if(matches(cursor.bytes(), cursor.length())) {
+                terms.add(cursor.term());
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * glob match, a '*' backtracks to the last star seen only, so this is linear for a single star
+     */
+    public boolean matches(byte[] term, int length) {
+        int p = 0, t = 0;
+        int star = -1, starT = 0;
+        while(t < length) {
+            if(p < this.pattern.length && this.pattern[p] == '?') {
+                p++;
+                t = nextChar(term, t, length);
+            } else if(p < this.pattern.length && this.pattern[p] == '*') {
+                star = p++;
+                starT = t;
+            } else if(p < this.pattern.length && this.pattern[p] == term[t]) {
+                p++;
+                t++;
+            } else if(star >= 0) {
+                p = star + 1;
+                t = starT = nextChar(term, starT, length);
+            } else {
+                return false;
+            }
+        }
+        while(p < this.pattern.length && this.pattern[p] == '*') p++;
+        return p == this.pattern.length;
+    }
+
+    /** '?' is one character, which can be several UTF-8 bytes **/
+    private static int nextChar(byte[] term, int t, int length) {
+        t++;
+        while(t < length && (term[t] & 0xC0) == 0x80) t++;
+        return t;
+    }
+}